@@ -0,0 +1,150 @@
+package com.gcm.server.http;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limita a taxa de mensagens enviadas com uma API key, ajustando-a conforme as respostas do GCM.
+ * <p>
+ * É um token bucket medido em registration ids por segundo: cada tentativa de um multicast reserva um token por registration id
+ * e é agendada para quando os tokens estiverem disponíveis, sem bloquear threads. A taxa segue o esquema AIMD: cada resposta sem
+ * sinal de sobrecarga aumenta a taxa em um valor fixo, e cada sinal de sobrecarga ({@link ErrorCode#QUOTA_EXCEEDED}, status 503
+ * ou header Retry-After) a reduz pela metade. Um Retry-After também suspende todos os envios até o tempo pedido.
+ * <p>
+ * Mensagens de alta prioridade ({@link Message.Priority#HIGH}) não aguardam na fila dos envios normais: os seus tokens são
+ * descontados da taxa, atrasando os próximos envios normais, e apenas uma suspensão por Retry-After as faz aguardar. Examplo:
+ * <pre><code>
+ * sender.setRateLimiter(new AdaptiveRateLimiter(1000, 10000));
+ * </code></pre>
+ * <p>
+ * A cota do GCM é por API key: os {@link Sender} que usam a mesma key devem compartilhar a mesma instância. As instâncias dessa
+ * classe são thread-safe.
+ *
+ * @see Sender#setRateLimiter(AdaptiveRateLimiter)
+ */
+public final class AdaptiveRateLimiter
+{
+    /**
+     * Taxa mínima, em registration ids por segundo.
+     */
+    public static final double MIN_RATE = 1;
+
+    /**
+     * Fator aplicado à taxa a cada sinal de sobrecarga.
+     */
+    public static final double DECREASE_FACTOR = 0.5;
+
+    /**
+     * Intervalo mínimo entre duas reduções, em milissegundos. Os requests que estavam em andamento quando a taxa foi reduzida
+     * costumam receber o mesmo sinal, que não deve reduzi-la novamente.
+     */
+    public static final long DECREASE_INTERVAL = 1000;
+
+    /**
+     * Fração da taxa máxima somada à taxa a cada resposta sem sinal de sobrecarga.
+     */
+    public static final double INCREASE_FRACTION = 0.01;
+
+    // tokens que podem acumular enquanto não há envios, em segundos da taxa atual
+    private static final double BURST_SECONDS = 1;
+
+    private final double maxRate;
+    private double rate;
+    // instante teórico em que o próximo token fica disponível (GCRA)
+    private long nextFree = System.nanoTime();
+    private long suspendedUntil = nextFree;
+    private long lastDecrease = nextFree - TimeUnit.MILLISECONDS.toNanos(DECREASE_INTERVAL);
+
+    /**
+     * @param initialRate taxa inicial, em registration ids por segundo.
+     * @param maxRate     taxa máxima, em registration ids por segundo.
+     */
+    public AdaptiveRateLimiter(double initialRate, double maxRate)
+    {
+        if(maxRate < MIN_RATE || initialRate < MIN_RATE || initialRate > maxRate)
+        {
+            throw new IllegalArgumentException("taxas inválidas: " + initialRate + ", " + maxRate);
+        }
+
+        this.rate = initialRate;
+        this.maxRate = maxRate;
+    }
+
+    /**
+     * Obtém a taxa atual.
+     *
+     * @return taxa em registration ids por segundo.
+     */
+    public synchronized double getRate()
+    {
+        return rate;
+    }
+
+    /**
+     * Reserva tokens para uma tentativa.
+     *
+     * @param permits número de registration ids da tentativa.
+     *
+     * @return quanto a tentativa deve aguardar, em milissegundos.
+     */
+    synchronized long reserve(int permits)
+    {
+        long now = System.nanoTime();
+        long burst = (long)(BURST_SECONDS * TimeUnit.SECONDS.toNanos(1));
+        long cost = (long)(permits * TimeUnit.SECONDS.toNanos(1) / rate);
+
+        // tokens acumulados enquanto ocioso, limitados a BURST_SECONDS
+        long start = Math.max(nextFree, now - burst);
+        nextFree = start + cost;
+
+        long allowedAt = Math.max(nextFree - burst, suspendedUntil);
+        return allowedAt <= now ? 0 : TimeUnit.NANOSECONDS.toMillis(allowedAt - now) + 1;
+    }
+
+    /**
+     * Reserva tokens para uma tentativa de alta prioridade, sem aguardar os envios normais já agendados. Os tokens são consumidos
+     * da mesma forma que em {@link #reserve(int)}, de modo que os envios normais seguintes aguardam por eles.
+     *
+     * @param permits número de registration ids da tentativa.
+     *
+     * @return quanto a tentativa deve aguardar, em milissegundos; maior que 0 apenas durante um Retry-After.
+     */
+    synchronized long reservePriority(int permits)
+    {
+        long now = System.nanoTime();
+        long burst = (long)(BURST_SECONDS * TimeUnit.SECONDS.toNanos(1));
+        long cost = (long)(permits * TimeUnit.SECONDS.toNanos(1) / rate);
+
+        nextFree = Math.max(nextFree, now - burst) + cost;
+
+        return suspendedUntil <= now ? 0 : TimeUnit.NANOSECONDS.toMillis(suspendedUntil - now) + 1;
+    }
+
+    /**
+     * Registra uma resposta sem sinal de sobrecarga.
+     */
+    synchronized void onSuccess()
+    {
+        rate = Math.min(maxRate, rate + maxRate * INCREASE_FRACTION);
+    }
+
+    /**
+     * Registra um sinal de sobrecarga.
+     *
+     * @param retryAfter tempo pedido pelo GCM (header Retry-After), em milissegundos, ou {@literal null}.
+     */
+    synchronized void onThrottle(Long retryAfter)
+    {
+        long now = System.nanoTime();
+
+        if(retryAfter != null)
+        {
+            suspendedUntil = Math.max(suspendedUntil, now + TimeUnit.MILLISECONDS.toNanos(retryAfter));
+        }
+
+        if(now - lastDecrease >= TimeUnit.MILLISECONDS.toNanos(DECREASE_INTERVAL))
+        {
+            rate = Math.max(MIN_RATE, rate * DECREASE_FACTOR);
+            lastDecrease = now;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.gcm.server.http;
+
+/**
+ * Política que define quanto tempo esperar antes de cada nova tentativa de envio.
+ * <p>
+ * Implementações devem ser thread-safe, pois a mesma política é usada por todos os envios de um {@link Sender}.
+ *
+ * @see Sender#setBackoffPolicy(BackoffPolicy)
+ * @see ExponentialBackoff
+ * @see DecorrelatedJitterBackoff
+ */
+public interface BackoffPolicy
+{
+    /**
+     * Calcula o atraso antes da próxima tentativa.
+     *
+     * @param retry         número da nova tentativa, começando em 1.
+     * @param previousDelay atraso usado antes da tentativa anterior, em milissegundos, ou 0 na primeira.
+     *
+     * @return atraso em milissegundos.
+     */
+    long nextDelay(int retry, long previousDelay);
+}
@@ -0,0 +1,1038 @@
+package com.gcm.server.http;
+
+import static com.gcm.server.http.Constants.MAX_MULTICAST_SIZE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Journal de uma campanha multicast, que permite retomá-la depois de uma falha do processo sem reenviar o que já foi entregue.
+ * <p>
+ * É um log append-only em um arquivo mapeado em memória. Antes de cada tentativa de um lote, o {@link Sender} registra as
+ * posições que serão enviadas e, depois do response, o resultado de cada uma e o multicast id. Cada registro é gravado em disco
+ * antes de o envio prosseguir; as threads que aguardam ao mesmo tempo são atendidas por um único force (group commit), de modo
+ * que o custo não cresce com o número de lotes simultâneos. Os registros têm CRC32, e um registro incompleto no fim do arquivo,
+ * escrito durante a falha, é ignorado.
+ * <p>
+ * Ao abrir um journal existente, o log é lido e o último resultado de cada posição é restaurado; o arquivo não é reescrito, e
+ * pode ser compactado explicitamente com {@link #compact()}. O envio seguinte com o mesmo journal pula as posições que já têm resultado final (sucesso ou erro
+ * definitivo), restaura os multicast ids obtidos e envia apenas o restante. Posições enviadas cujo resultado não chegou a ser
+ * registrado ({@link #getInDoubtCount()}) podem ter sido entregues, e são enviadas novamente. Examplo:
+ * <pre><code>
+ * PreparedMessage message = new PreparedMessage(campaign);
+ *
+ * try(CampaignJournal journal = new CampaignJournal(Paths.get("campaign.journal"), message, regIds))
+ * {
+ *     MulticastResult result = sender.send(message, regIds, 5, journal);
+ * }
+ * </code></pre>
+ * <p>
+ * Um journal pertence a uma única campanha: a mesma mensagem e a mesma lista de registration ids, na mesma ordem. O journal
+ * registra o início da campanha ({@link #getStartedAt()}), e o time to live da mensagem continua a ser contado a partir dele
+ * depois de uma retomada.
+ * As instâncias dessa classe são thread-safe.
+ *
+ * @see Sender#send(PreparedMessage, List, int, CampaignJournal)
+ */
+public final class CampaignJournal implements Closeable
+{
+    private static final int MAGIC = 0x47434d4a;
+    private static final int VERSION = 2;
+
+    // tipos de registro
+    private static final byte HEADER = 1;
+    private static final byte DISPATCH = 2;
+    private static final byte OUTCOME = 3;
+
+    // tipos de resultado
+    private static final byte SUCCESS = 0;
+    private static final byte CANONICAL = 1;
+    private static final byte FINAL_ERROR = 2;
+    private static final byte RETRYABLE_ERROR = 3;
+
+    // estado de cada posição
+    private static final byte NONE = 0;
+    private static final byte IN_DOUBT = 1;
+    private static final byte PENDING = 2;
+    private static final byte COMPLETED = 3;
+
+    // cada registro começa com o tamanho do corpo e o seu CRC32
+    private static final int RECORD_HEADER = 8;
+    private static final int INITIAL_MAPPING = 1 << 20;
+    private static final ThreadLocal<RecordWriter> WRITER = ThreadLocal.withInitial(() -> new RecordWriter(8192));
+    // maior buffer de registro mantido por thread; comporta os resultados de um lote completo
+    private static final int MAX_WRITER_CAPACITY = 1 << 18;
+    // tamanho que marca uma string nula em um registro
+    private static final int NULL_STRING = 0xFFFF;
+
+    private final Path file;
+    private final long messageHash;
+    private final long regIdsHash;
+    private final int size;
+    // instante da criação do journal, lido do cabeçalho de um journal existente
+    private long startedAt = System.currentTimeMillis();
+    private final byte[] states;
+    // posição no arquivo do último resultado de cada registration id, 0 se não há
+    private final int[] resultOffsets;
+    // multicast ids de cada lote, pelo índice do primeiro registration id
+    private final Map<Integer, List<Long>> multicastIds = new HashMap<>();
+    private final int inDoubt;
+    private int completed;
+
+    private FileChannel channel;
+    private volatile MappedByteBuffer buffer;
+    private int written;
+    // group commit: bytes escritos desde a abertura, e quantos deles já estão em disco
+    private long appended;
+    private long durable;
+    private boolean forcing;
+    private boolean closed;
+
+    /**
+     * Abre o journal da campanha, criando o arquivo se necessário.
+     *
+     * @param file    arquivo do journal.
+     * @param message mensagem da campanha.
+     * @param regIds  registration ids da campanha.
+     *
+     * @throws IllegalArgumentException se o arquivo é o journal de outra campanha.
+     * @throws IOException              se o arquivo não pôde ser lido ou criado.
+     */
+    public CampaignJournal(Path file, PreparedMessage message, List<String> regIds) throws IOException
+    {
+        this.file = Sender.nonNull(file);
+        this.size = Sender.nonNull(regIds).size();
+        this.messageHash = hash(Sender.nonNull(message));
+        this.regIdsHash = hash(regIds);
+        this.states = new byte[size];
+        this.resultOffsets = new int[size];
+
+        open();
+
+        try
+        {
+            replay();
+
+            if(written == 0)
+            {
+                RecordWriter writer = WRITER.get().start(HEADER);
+                writeHeader(writer);
+                append(writer);
+                writer.trim(MAX_WRITER_CAPACITY);
+                sync(appended);
+            }
+        }
+        catch(IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+
+        int count = 0;
+
+        for(byte state : states)
+        {
+            if(state == IN_DOUBT)
+            {
+                count++;
+            }
+        }
+
+        inDoubt = count;
+    }
+
+    /**
+     * Obtém o número de registration ids da campanha.
+     *
+     * @return size
+     */
+    public int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Obtém o instante em que a campanha começou, quando o journal foi criado, a partir do qual o time to live da mensagem é
+     * contado.
+     *
+     * @return startedAt, em milissegundos desde a época.
+     */
+    public synchronized long getStartedAt()
+    {
+        return startedAt;
+    }
+
+    /**
+     * Obtém o número de registration ids com resultado final.
+     *
+     * @return completedCount
+     */
+    public synchronized int getCompletedCount()
+    {
+        return completed;
+    }
+
+    /**
+     * Obtém o número de registration ids que, quando o journal foi aberto, tinham sido enviados sem que o resultado fosse
+     * registrado. Eles podem ter recebido a mensagem, e serão enviados novamente.
+     *
+     * @return inDoubtCount
+     */
+    public int getInDoubtCount()
+    {
+        return inDoubt;
+    }
+
+    /**
+     * Indica se o registration id da posição já tem resultado final e não será enviado novamente.
+     *
+     * @param index posição na lista de registration ids da campanha.
+     *
+     * @return completed
+     */
+    public synchronized boolean isCompleted(int index)
+    {
+        return states[index] == COMPLETED;
+    }
+
+    /**
+     * Obtém o último resultado registrado para a posição.
+     *
+     * @param index posição na lista de registration ids da campanha.
+     *
+     * @return resultado, ou {@literal null} se a posição não tem resultado.
+     */
+    public synchronized Result getResult(int index)
+    {
+        int offset = resultOffsets[index];
+        return offset == 0 ? null : readResult(buffer, offset);
+    }
+
+    /**
+     * Verifica se a mensagem e os registration ids, na mesma ordem, são os da campanha.
+     */
+    boolean matches(PreparedMessage message, List<String> regIds)
+    {
+        return size == regIds.size() && messageHash == hash(message) && regIdsHash == hash(regIds);
+    }
+
+    /**
+     * Obtém os multicast ids registrados para o lote.
+     *
+     * @param offset índice do primeiro registration id do lote.
+     */
+    synchronized List<Long> getMulticastIds(int offset)
+    {
+        List<Long> ids = multicastIds.get(offset);
+        return ids == null ? Collections.emptyList() : new ArrayList<>(ids);
+    }
+
+    /**
+     * Registra as posições de um lote que serão enviadas e aguarda o registro estar em disco.
+     *
+     * @param offset    índice do primeiro registration id do lote.
+     * @param positions posições no lote.
+     * @param count     número de posições válidas em {@code positions}.
+     *
+     * @throws IOException se o registro não pôde ser gravado.
+     */
+    void dispatched(int offset, int[] positions, int count) throws IOException
+    {
+        RecordWriter writer = WRITER.get().start(DISPATCH);
+        writer.putInt(count);
+
+        for(int i = 0; i < count; i++)
+        {
+            writer.putInt(offset + positions[i]);
+        }
+
+        long sequence;
+
+        synchronized(this)
+        {
+            append(writer);
+
+            for(int i = 0; i < count; i++)
+            {
+                int index = offset + positions[i];
+
+                if(states[index] != COMPLETED)
+                {
+                    states[index] = IN_DOUBT;
+                }
+            }
+
+            sequence = appended;
+        }
+
+        writer.trim(MAX_WRITER_CAPACITY);
+        sync(sequence);
+    }
+
+    /**
+     * Registra os resultados de uma tentativa e aguarda o registro estar em disco.
+     *
+     * @param offset      índice do primeiro registration id do lote.
+     * @param multicastId multicast id da tentativa, ou 0 se não houve request.
+     * @param positions   posições no lote.
+     * @param count       número de posições válidas em {@code positions}.
+     * @param results     resultado de cada posição, na mesma ordem de {@code positions}.
+     *
+     * @throws IOException se o registro não pôde ser gravado.
+     */
+    void recorded(int offset, long multicastId, int[] positions, int count, List<Result> results) throws IOException
+    {
+        RecordWriter writer = WRITER.get().start(OUTCOME);
+        writer.putInt(offset);
+        writer.putLong(multicastId);
+        writer.putInt(count);
+        int[] entries = new int[count];
+
+        for(int i = 0; i < count; i++)
+        {
+            entries[i] = writer.length();
+            writer.putInt(offset + positions[i]);
+            writeResult(writer, results.get(i));
+        }
+
+        long sequence;
+
+        synchronized(this)
+        {
+            int base = append(writer);
+
+            for(int i = 0; i < count; i++)
+            {
+                setResult(offset + positions[i], base + entries[i], kind(results.get(i)));
+            }
+
+            if(multicastId != 0)
+            {
+                multicastIds.computeIfAbsent(offset, (key) -> new ArrayList<>()).add(multicastId);
+            }
+
+            sequence = appended;
+        }
+
+        writer.trim(MAX_WRITER_CAPACITY);
+        sync(sequence);
+    }
+
+    /**
+     * Reescreve o journal com apenas o último resultado de cada posição e os multicast ids, descartando as tentativas anteriores.
+     * <p>
+     * O novo arquivo é gravado ao lado do atual e o substitui atomicamente, de modo que uma falha durante a compactação preserva o
+     * journal original, que continua em uso. É feita automaticamente apenas quando o arquivo atinge o tamanho máximo de um
+     * mapeamento (2 GB). Em sistemas que não permitem substituir um arquivo mapeado, como o Windows, a compactação falha e o journal
+     * continua a crescer.
+     *
+     * @throws IOException se o novo arquivo não pôde ser gravado ou não pôde substituir o atual.
+     */
+    public synchronized void compact() throws IOException
+    {
+        ensureOpen();
+        Path temp = file.resolveSibling(file.getFileName() + ".compact");
+        MappedByteBuffer source = buffer;
+        RecordWriter writer = new RecordWriter(8192);
+
+        try(FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE))
+        {
+            writeHeader(writer.start(HEADER));
+            write(out, writer);
+
+            for(int from = 0; from < size; from += MAX_MULTICAST_SIZE)
+            {
+                int to = Math.min(from + MAX_MULTICAST_SIZE, size);
+                List<Long> ids = multicastIds.getOrDefault(from, Collections.emptyList());
+                int count = 0;
+
+                for(int i = from; i < to; i++)
+                {
+                    if(resultOffsets[i] != 0)
+                    {
+                        count++;
+                    }
+                }
+
+                if(count > 0 || !ids.isEmpty())
+                {
+                    writer.start(OUTCOME).putInt(from);
+                    writer.putLong(ids.isEmpty() ? 0 : ids.get(0));
+                    writer.putInt(count);
+
+                    for(int i = from; i < to; i++)
+                    {
+                        int entry = resultOffsets[i];
+
+                        if(entry != 0)
+                        {
+                            writer.put(source, entry, skipResult(source, entry + 4) - entry);
+                        }
+                    }
+                    write(out, writer);
+
+                    for(int i = 1; i < ids.size(); i++)
+                    {
+                        writer.start(OUTCOME).putInt(from);
+                        writer.putLong(ids.get(i));
+                        writer.putInt(0);
+                        write(out, writer);
+                    }
+                }
+
+                // registrado depois do resultado anterior, a posição continua sem resultado confirmado
+                count = 0;
+
+                for(int i = from; i < to; i++)
+                {
+                    if(states[i] == IN_DOUBT)
+                    {
+                        count++;
+                    }
+                }
+
+                if(count > 0)
+                {
+                    writer.start(DISPATCH).putInt(count);
+
+                    for(int i = from; i < to; i++)
+                    {
+                        if(states[i] == IN_DOUBT)
+                        {
+                            writer.putInt(i);
+                        }
+                    }
+                    write(out, writer);
+                }
+            }
+
+            out.force(true);
+        }
+
+        try
+        {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(IOException e)
+        {
+            // o arquivo atual continua mapeado e válido
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        channel.close();
+        open();
+
+        Arrays.fill(states, NONE);
+        Arrays.fill(resultOffsets, 0);
+        multicastIds.clear();
+        completed = 0;
+        replay();
+
+        // o novo arquivo já está em disco
+        durable = appended;
+        notifyAll();
+    }
+
+    /**
+     * Grava em disco o que foi registrado e fecha o arquivo.
+     *
+     * @throws IOException se o arquivo não pôde ser gravado.
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if(closed)
+        {
+            return;
+        }
+
+        closed = true;
+
+        try
+        {
+            buffer.force();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    private void open() throws IOException
+    {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long length = channel.size();
+
+        if(length > Integer.MAX_VALUE)
+        {
+            throw new IOException("Journal maior que 2 GB: " + file);
+        }
+
+        int capacity = INITIAL_MAPPING;
+
+        while(capacity < length && capacity < (1 << 30))
+        {
+            capacity <<= 1;
+        }
+
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(capacity, (int)length));
+        written = 0;
+    }
+
+    /**
+     * Lê os registros do arquivo, até o fim ou até o primeiro registro incompleto.
+     */
+    private void replay()
+    {
+        MappedByteBuffer buf = buffer;
+        CRC32 crc = new CRC32();
+        int limit = buf.capacity();
+        int position = 0;
+
+        while(position + RECORD_HEADER <= limit)
+        {
+            int length = buf.getInt(position);
+
+            if(length <= 0 || length > limit - position - RECORD_HEADER)
+            {
+                break;
+            }
+
+            int start = position + RECORD_HEADER;
+            ByteBuffer body = buf.duplicate();
+            body.limit(start + length).position(start);
+            crc.reset();
+            crc.update(body);
+
+            if((int)crc.getValue() != buf.getInt(position + 4))
+            {
+                break;
+            }
+
+            byte type = buf.get(start);
+
+            if(position == 0)
+            {
+                checkHeader(buf, start + 1, type);
+            }
+            else if(type == DISPATCH)
+            {
+                replayDispatch(buf, start + 1);
+            }
+            else if(type == OUTCOME)
+            {
+                replayOutcome(buf, start + 1);
+            }
+
+            position = start + length;
+        }
+
+        written = position;
+    }
+
+    private void checkHeader(ByteBuffer buf, int position, byte type)
+    {
+        if(type != HEADER || buf.getInt(position) != MAGIC)
+        {
+            throw new IllegalArgumentException("Arquivo não é um journal de campanha: " + file);
+        }
+        if(buf.getInt(position + 4) != VERSION)
+        {
+            throw new IllegalArgumentException("Versão de journal não suportada: " + buf.getInt(position + 4));
+        }
+        if(buf.getLong(position + 8) != messageHash || buf.getLong(position + 16) != regIdsHash
+                || buf.getInt(position + 24) != size)
+        {
+            throw new IllegalArgumentException("Journal pertence a outra campanha: " + file);
+        }
+
+        startedAt = buf.getLong(position + 28);
+    }
+
+    private void replayDispatch(ByteBuffer buf, int position)
+    {
+        int count = buf.getInt(position);
+
+        for(int i = 0; i < count; i++)
+        {
+            int index = buf.getInt(position + 4 + i * 4);
+
+            if(states[index] != COMPLETED)
+            {
+                states[index] = IN_DOUBT;
+            }
+        }
+    }
+
+    private void replayOutcome(ByteBuffer buf, int position)
+    {
+        int offset = buf.getInt(position);
+        long multicastId = buf.getLong(position + 4);
+        int count = buf.getInt(position + 12);
+        int entry = position + 16;
+
+        if(multicastId != 0)
+        {
+            multicastIds.computeIfAbsent(offset, (key) -> new ArrayList<>()).add(multicastId);
+        }
+
+        for(int i = 0; i < count; i++)
+        {
+            setResult(buf.getInt(entry), entry, buf.get(entry + 4));
+            entry = skipResult(buf, entry + 4);
+        }
+    }
+
+    private void setResult(int index, int offset, byte kind)
+    {
+        byte state = kind == RETRYABLE_ERROR ? PENDING : COMPLETED;
+
+        if(states[index] == COMPLETED)
+        {
+            completed--;
+        }
+        if(state == COMPLETED)
+        {
+            completed++;
+        }
+
+        states[index] = state;
+        resultOffsets[index] = offset;
+    }
+
+    private void writeHeader(RecordWriter writer)
+    {
+        writer.putInt(MAGIC);
+        writer.putInt(VERSION);
+        writer.putLong(messageHash);
+        writer.putLong(regIdsHash);
+        writer.putInt(size);
+        writer.putLong(startedAt);
+    }
+
+    /**
+     * Copia o registro para o arquivo mapeado, crescendo o mapeamento se necessário.
+     *
+     * @return posição do registro no arquivo.
+     */
+    private int append(RecordWriter writer) throws IOException
+    {
+        ensureOpen();
+        int length = writer.finish();
+
+        if(length > buffer.capacity() - written)
+        {
+            grow(length);
+        }
+
+        int base = written;
+        ByteBuffer target = buffer.duplicate();
+        target.position(base);
+        target.put(writer.buffer(), 0, length);
+        written += length;
+        appended += length;
+        return base;
+    }
+
+    private void grow(int length) throws IOException
+    {
+        if(length > Integer.MAX_VALUE - written)
+        {
+            compact();
+
+            if(length > Integer.MAX_VALUE - written)
+            {
+                throw new IOException("Journal excede o tamanho máximo de 2 GB: " + file);
+            }
+        }
+
+        long capacity = buffer.capacity();
+
+        while(capacity < written + (long)length)
+        {
+            capacity <<= 1;
+        }
+
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(capacity, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Aguarda os registros até {@code sequence} estarem em disco. Uma única thread faz o force por vez, cobrindo tudo o que foi
+     * escrito até então; as demais aguardam o resultado.
+     */
+    private void sync(long sequence) throws IOException
+    {
+        for(;;)
+        {
+            long target;
+            MappedByteBuffer buf;
+
+            synchronized(this)
+            {
+                try
+                {
+                    while(forcing && durable < sequence)
+                    {
+                        wait();
+                    }
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrompido aguardando o journal");
+                }
+
+                if(durable >= sequence)
+                {
+                    return;
+                }
+
+                ensureOpen();
+                forcing = true;
+                target = appended;
+                buf = buffer;
+            }
+
+            boolean forced = false;
+
+            try
+            {
+                buf.force();
+                forced = true;
+            }
+            finally
+            {
+                synchronized(this)
+                {
+                    forcing = false;
+
+                    if(forced)
+                    {
+                        durable = Math.max(durable, target);
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException
+    {
+        if(closed)
+        {
+            throw new IOException("Journal fechado: " + file);
+        }
+    }
+
+    private static void write(FileChannel out, RecordWriter writer) throws IOException
+    {
+        ByteBuffer source = ByteBuffer.wrap(writer.buffer(), 0, writer.finish());
+
+        while(source.hasRemaining())
+        {
+            out.write(source);
+        }
+    }
+
+    private static byte kind(Result result)
+    {
+        if(result.getMessageId() != null)
+        {
+            return result.getCanonicalRegistrationId() == null ? SUCCESS : CANONICAL;
+        }
+
+        ErrorCode error = result.getErrorCode();
+        return error != null && (error.isRetryable() || error.isQuota()) ? RETRYABLE_ERROR : FINAL_ERROR;
+    }
+
+    private static void writeResult(RecordWriter writer, Result result)
+    {
+        byte kind = kind(result);
+        writer.putByte(kind);
+
+        switch(kind)
+        {
+            case SUCCESS:
+                writer.putString(result.getMessageId());
+                break;
+            case CANONICAL:
+                writer.putString(result.getMessageId());
+                writer.putString(result.getCanonicalRegistrationId());
+                break;
+            default:
+                writer.putString(result.getErrorCodeName());
+        }
+    }
+
+    /**
+     * Lê o resultado de uma entrada (índice seguido do resultado).
+     */
+    private static Result readResult(ByteBuffer buf, int entry)
+    {
+        int position = entry + 4;
+        byte kind = buf.get(position++);
+        String first = readString(buf, position);
+        Result.Builder builder = new Result.Builder();
+
+        switch(kind)
+        {
+            case SUCCESS:
+                return builder.messageId(first).build();
+            case CANONICAL:
+                position = skipString(buf, position);
+                return builder.messageId(first).canonicalRegistrationId(readString(buf, position)).build();
+            default:
+                return builder.errorCode(first).build();
+        }
+    }
+
+    /**
+     * Obtém a posição seguinte ao resultado que começa em {@code position}.
+     */
+    private static int skipResult(ByteBuffer buf, int position)
+    {
+        byte kind = buf.get(position++);
+        int strings = kind == CANONICAL ? 2 : 1;
+
+        for(int i = 0; i < strings; i++)
+        {
+            position = skipString(buf, position);
+        }
+
+        return position;
+    }
+
+    private static int skipString(ByteBuffer buf, int position)
+    {
+        int length = buf.getShort(position) & 0xFFFF;
+        return position + 2 + (length == NULL_STRING ? 0 : length);
+    }
+
+    private static String readString(ByteBuffer buf, int position)
+    {
+        int length = buf.getShort(position) & 0xFFFF;
+
+        if(length == NULL_STRING)
+        {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+
+        for(int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = buf.get(position + 2 + i);
+        }
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Hash de 64 bits (FNV-1a) do fragmento serializado da mensagem.
+     */
+    private static long hash(PreparedMessage message)
+    {
+        long hash = 0xcbf29ce484222325L;
+
+        for(byte value : message.prefix())
+        {
+            hash ^= value & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    /**
+     * Hash de 64 bits (FNV-1a) dos registration ids, na ordem.
+     */
+    private static long hash(List<String> regIds)
+    {
+        long hash = 0xcbf29ce484222325L;
+
+        for(String regId : regIds)
+        {
+            for(int i = 0; i < regId.length(); i++)
+            {
+                hash ^= regId.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+
+            // separador, para que ["ab", "c"] e ["a", "bc"] sejam diferentes
+            hash ^= 0xFFFF;
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    /**
+     * Buffer de um registro: tamanho e CRC32, seguidos do corpo.
+     * <p>
+     * <strong>Nota: </strong> instâncias não são thread-safe.
+     */
+    private static final class RecordWriter
+    {
+        private final CRC32 crc = new CRC32();
+        private final int initialCapacity;
+        private byte[] buffer;
+        private int length;
+
+        RecordWriter(int capacity)
+        {
+            initialCapacity = capacity;
+            buffer = new byte[capacity];
+        }
+
+        /**
+         * Volta à capacidade inicial se o buffer cresceu além do limite, para que um registro excepcionalmente grande não fique retido
+         * pela thread. O registro atual é descartado.
+         */
+        void trim(int maxCapacity)
+        {
+            if(buffer.length > maxCapacity)
+            {
+                buffer = new byte[initialCapacity];
+            }
+            length = 0;
+        }
+
+        /**
+         * Inicia um novo registro do tipo informado.
+         */
+        RecordWriter start(byte type)
+        {
+            length = RECORD_HEADER;
+            return putByte(type);
+        }
+
+        /**
+         * Preenche o tamanho e o CRC32 do registro.
+         *
+         * @return tamanho total do registro.
+         */
+        int finish()
+        {
+            crc.reset();
+            crc.update(buffer, RECORD_HEADER, length - RECORD_HEADER);
+            setInt(0, length - RECORD_HEADER);
+            setInt(4, (int)crc.getValue());
+            return length;
+        }
+
+        byte[] buffer()
+        {
+            return buffer;
+        }
+
+        int length()
+        {
+            return length;
+        }
+
+        RecordWriter putByte(byte value)
+        {
+            ensureCapacity(1);
+            buffer[length++] = value;
+            return this;
+        }
+
+        RecordWriter putInt(int value)
+        {
+            ensureCapacity(4);
+            setInt(length, value);
+            length += 4;
+            return this;
+        }
+
+        RecordWriter putLong(long value)
+        {
+            ensureCapacity(8);
+            setInt(length, (int)(value >>> 32));
+            setInt(length + 4, (int)value);
+            length += 8;
+            return this;
+        }
+
+        /**
+         * Escreve uma string precedida do seu tamanho em 2 bytes; {@literal null} é escrito como o tamanho {@value CampaignJournal#NULL_STRING}.
+         */
+        RecordWriter putString(String value)
+        {
+            if(value == null)
+            {
+                ensureCapacity(2);
+                buffer[length] = (byte)(NULL_STRING >>> 8);
+                buffer[length + 1] = (byte)NULL_STRING;
+                length += 2;
+                return this;
+            }
+
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+            if(bytes.length >= NULL_STRING)
+            {
+                throw new IllegalArgumentException("valor muito longo para o journal: " + bytes.length + " bytes");
+            }
+
+            ensureCapacity(2 + bytes.length);
+            buffer[length] = (byte)(bytes.length >>> 8);
+            buffer[length + 1] = (byte)bytes.length;
+            System.arraycopy(bytes, 0, buffer, length + 2, bytes.length);
+            length += 2 + bytes.length;
+            return this;
+        }
+
+        /**
+         * Copia {@code count} bytes de outro buffer.
+         */
+        RecordWriter put(ByteBuffer source, int position, int count)
+        {
+            ensureCapacity(count);
+            ByteBuffer copy = source.duplicate();
+            copy.position(position);
+            copy.get(buffer, length, count);
+            length += count;
+            return this;
+        }
+
+        /**
+         * Escreve um int big-endian, a mesma ordem lida por {@link ByteBuffer#getInt(int)}.
+         */
+        private void setInt(int position, int value)
+        {
+            buffer[position] = (byte)(value >>> 24);
+            buffer[position + 1] = (byte)(value >>> 16);
+            buffer[position + 2] = (byte)(value >>> 8);
+            buffer[position + 3] = (byte)value;
+        }
+
+        private void ensureCapacity(int extra)
+        {
+            int required = length + extra;
+
+            if(required > buffer.length)
+            {
+                buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+            }
+        }
+    }
+}
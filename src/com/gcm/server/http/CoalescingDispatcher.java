@@ -0,0 +1,330 @@
+package com.gcm.server.http;
+
+import static com.gcm.server.http.Constants.MAX_MULTICAST_SIZE;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Agrupa envios para um único dispositivo em requests multicast.
+ * <p>
+ * Cada envio é guardado por uma janela curta (veja {@link #setWindow(long)}); os envios da mesma mensagem feitos nesse intervalo
+ * são enviados juntos, em lotes de até {@value Constants#MAX_MULTICAST_SIZE} registration ids, e o future de cada chamador é
+ * completado com o seu próprio {@link Result}. Mensagens são consideradas iguais quando são a mesma instância ou quando o JSON
+ * codificado é idêntico. Examplo:
+ * <pre><code>
+ * CoalescingDispatcher dispatcher = new CoalescingDispatcher(sender);
+ *
+ * for(User user : users)
+ * {
+ *     dispatcher.send(alert, user.getRegistrationId(), 5).thenAccept(...);
+ * }
+ * </code></pre>
+ * <p>
+ * As instâncias dessa classe são thread-safe.
+ */
+public final class CoalescingDispatcher
+{
+    /**
+     * Janela default de agrupamento, em milissegundos.
+     */
+    public static final long DEFAULT_WINDOW = 10;
+
+    private final Sender sender;
+    private volatile long window = DEFAULT_WINDOW;
+
+    private final Object lock = new Object();
+    // lotes abertos, pela mensagem codificada e pelo número de tentativas
+    private final Map<BatchKey, Batch> batches = new HashMap<>();
+    // atalho para envios da mesma instância de mensagem, evitando codificá-la novamente
+    private final Map<Message, Batch> byInstance = new IdentityHashMap<>();
+
+    /**
+     * @param sender sender usado nos envios.
+     */
+    public CoalescingDispatcher(Sender sender)
+    {
+        this.sender = Sender.nonNull(sender);
+    }
+
+    /**
+     * Define por quanto tempo um envio aguarda outros envios da mesma mensagem (valor default é {@value #DEFAULT_WINDOW} ms). Um
+     * lote que atinge {@value Constants#MAX_MULTICAST_SIZE} registration ids é enviado imediatamente.
+     *
+     * @param window janela de agrupamento, em milissegundos; 0 agrupa apenas os envios simultâneos.
+     */
+    public void setWindow(long window)
+    {
+        if(window < 0)
+        {
+            throw new IllegalArgumentException("window não pode ser negativo");
+        }
+        this.window = window;
+    }
+
+    /**
+     * Agenda o envio de uma mensagem para um dispositivo, repetindo em caso de indisponibilidade.
+     *
+     * @param message        mensagem a ser enviada.
+     * @param registrationId dispositivo em que a mensagem será enviada.
+     * @param retries        número de tentativas em caso de erros de indisponibilidade de serviço.
+     *
+     * @return future com o resultado do envio para o dispositivo; completa com {@link java.io.IOException} se o lote não pôde ser
+     *         enviado.
+     *
+     * @throws IllegalArgumentException se registrationId é {@literal null}.
+     */
+    public CompletableFuture<Result> send(Message message, String registrationId, int retries)
+    {
+        Sender.nonNull(message);
+        Sender.nonNull(registrationId);
+
+        Batch batch;
+        CompletableFuture<Result> future = null;
+        boolean full = false;
+
+        synchronized(lock)
+        {
+            batch = byInstance.get(message);
+
+            if(batch != null && batch.key.retries == retries)
+            {
+                future = add(batch, registrationId);
+                full = batch.closed;
+            }
+        }
+
+        if(future != null)
+        {
+            if(full)
+            {
+                dispatch(batch);
+            }
+            return future;
+        }
+
+        return send(new PreparedMessage(message), message, registrationId, retries);
+    }
+
+    /**
+     * Agenda o envio de uma mensagem já serializada para um dispositivo, repetindo em caso de indisponibilidade.
+     *
+     * @param message        mensagem a ser enviada.
+     * @param registrationId dispositivo em que a mensagem será enviada.
+     * @param retries        número de tentativas em caso de erros de indisponibilidade de serviço.
+     *
+     * @return future com o resultado do envio para o dispositivo; completa com {@link java.io.IOException} se o lote não pôde ser
+     *         enviado.
+     *
+     * @throws IllegalArgumentException se registrationId é {@literal null}.
+     */
+    public CompletableFuture<Result> send(PreparedMessage message, String registrationId, int retries)
+    {
+        return send(Sender.nonNull(message), null, Sender.nonNull(registrationId), retries);
+    }
+
+    /**
+     * Envia imediatamente todos os lotes abertos.
+     */
+    public void flush()
+    {
+        List<Batch> open;
+
+        synchronized(lock)
+        {
+            open = new ArrayList<>(batches.values());
+            open.forEach(this::close);
+        }
+
+        open.forEach(this::dispatch);
+    }
+
+    private CompletableFuture<Result> send(PreparedMessage prepared, Message message, String registrationId, int retries)
+    {
+        BatchKey key = new BatchKey(prepared, retries);
+        Batch batch;
+        Batch created = null;
+        CompletableFuture<Result> future;
+        boolean full;
+
+        synchronized(lock)
+        {
+            batch = batches.get(key);
+
+            if(batch == null)
+            {
+                batch = created = new Batch(key);
+                batches.put(key, batch);
+            }
+            if(message != null)
+            {
+                byInstance.put(message, batch);
+                batch.messages.add(message);
+            }
+
+            future = add(batch, registrationId);
+            full = batch.closed;
+        }
+
+        if(full)
+        {
+            dispatch(batch);
+        }
+        else if(created != null)
+        {
+            schedule(created);
+        }
+
+        return future;
+    }
+
+    /**
+     * Adiciona um registration id ao lote, que deve estar aberto; chamado com o lock. Se o lote ficar cheio ele é fechado, e quem o
+     * fechou deve enviá-lo depois de liberar o lock.
+     */
+    private CompletableFuture<Result> add(Batch batch, String registrationId)
+    {
+        CompletableFuture<Result> future = new CompletableFuture<>();
+        batch.regIds.add(registrationId);
+        batch.futures.add(future);
+
+        if(batch.regIds.size() >= MAX_MULTICAST_SIZE)
+        {
+            // lote cheio, não espera a janela
+            close(batch);
+        }
+
+        return future;
+    }
+
+    private void schedule(Batch batch)
+    {
+        try
+        {
+            sender.getScheduler().schedule(() ->
+            {
+                synchronized(lock)
+                {
+                    if(batch.closed)
+                    {
+                        return;
+                    }
+                    close(batch);
+                }
+                dispatch(batch);
+            }, window, TimeUnit.MILLISECONDS);
+        }
+        catch(RejectedExecutionException e)
+        {
+            synchronized(lock)
+            {
+                if(batch.closed)
+                {
+                    return;
+                }
+                close(batch);
+            }
+            batch.futures.forEach((future) -> future.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * Retira o lote dos lotes abertos; chamado com o lock.
+     */
+    private void close(Batch batch)
+    {
+        batch.closed = true;
+        batches.remove(batch.key, batch);
+
+        for(Message message : batch.messages)
+        {
+            byInstance.remove(message, batch);
+        }
+    }
+
+    private void dispatch(Batch batch)
+    {
+        List<CompletableFuture<Result>> futures = batch.futures;
+
+        try
+        {
+            // o time to live é contado a partir do primeiro envio do lote
+            sender.sendAsync(batch.key.message, batch.regIds, batch.key.retries, null, null, batch.createdAt).whenComplete((result, error) ->
+            {
+                if(error != null)
+                {
+                    futures.forEach((future) -> future.completeExceptionally(error));
+                    return;
+                }
+
+                List<Result> results = result.getResults();
+
+                for(int i = 0; i < futures.size(); i++)
+                {
+                    futures.get(i).complete(results.get(i));
+                }
+            });
+        }
+        catch(RuntimeException e)
+        {
+            futures.forEach((future) -> future.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * Identifica os envios que podem ser agrupados: a mesma mensagem codificada, com o mesmo número de tentativas.
+     */
+    private static final class BatchKey
+    {
+        final PreparedMessage message;
+        final int retries;
+
+        BatchKey(PreparedMessage message, int retries)
+        {
+            this.message = message;
+            this.retries = retries;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if(!(obj instanceof BatchKey))
+            {
+                return false;
+            }
+
+            BatchKey other = (BatchKey)obj;
+            return retries == other.retries && message.equals(other.message);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * message.hashCode() + retries;
+        }
+    }
+
+    /**
+     * Envios agrupados, na ordem de chegada. Modificado apenas com o lock enquanto aberto.
+     */
+    private static final class Batch
+    {
+        final BatchKey key;
+        final List<String> regIds = new ArrayList<>();
+        final List<CompletableFuture<Result>> futures = new ArrayList<>();
+        final List<Message> messages = new ArrayList<>(1);
+        final long createdAt = System.currentTimeMillis();
+        boolean closed;
+
+        Batch(BatchKey key)
+        {
+            this.key = key;
+        }
+    }
+}
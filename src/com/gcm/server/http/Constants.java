@@ -10,6 +10,16 @@ public final class Constants
      */
     public static final String GCM_SEND_ENDPOINT = "https://android.googleapis.com/gcm/send";
 
+    /**
+     * Número máximo de registration ids aceitos pelo GCM em um único request multicast.
+     */
+    public static final int MAX_MULTICAST_SIZE = 1000;
+
+    /**
+     * Header HTTP com o tempo, em segundos ou como data HTTP, que o GCM pede para aguardar antes de uma nova tentativa.
+     */
+    public static final String HEADER_RETRY_AFTER = "Retry-After";
+
     /**
      * HTTP parametro para registration id.
      */
@@ -124,6 +134,18 @@ public final class Constants
      */
     public static final String ERROR_INVALID_TTL = "InvalidTtl";
 
+    /**
+     * O time to live da mensagem terminou antes que ela fosse aceita pelo GCM, e ela foi descartada pelo sender. Não é
+     * retornado pelo GCM.
+     */
+    public static final String ERROR_EXPIRED = "Expired";
+
+    /**
+     * O registration id está no {@link DeadTokenFilter} do sender, e a mensagem não foi enviada. Como o filtro admite falsos
+     * positivos, o id não deve ser removido apenas por este erro. Não é retornado pelo GCM.
+     */
+    public static final String ERROR_DEAD_TOKEN = "DeadToken";
+
     /**
      * Token retornado pelo GCM quando uma mensagem foi enviada com sucesso.
      */
@@ -0,0 +1,505 @@
+package com.gcm.server.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Filtro de Bloom escalável dos registration ids que o GCM informou como inválidos ({@link ErrorCode#NOT_REGISTERED} ou
+ * {@link ErrorCode#INVALID_REGISTRATION}).
+ * <p>
+ * Enquanto o armazenamento do servidor não remove esses ids, eles continuam a ser enviados em cada campanha, ocupando espaço nos
+ * requests e na cota. Com um {@link DeadTokenFilter}, o {@link Sender} registra os ids inválidos depois de cada tentativa e, antes
+ * de cada multicast, deixa de enviar os ids do filtro, cujo resultado é {@link ErrorCode#DEAD_TOKEN}. Mensagens
+ * {@link Message#isDryRun() dry run} sempre consultam o GCM.
+ * <p>
+ * O filtro não tem falsos negativos, mas um id válido pode ser descartado com a probabilidade de falso positivo configurada. O
+ * filtro começa com espaço para {@code expectedTokens} ids e, quando enche, ganha um novo estágio com o dobro da capacidade e
+ * metade da taxa de falsos positivos, de modo que a taxa total nunca passa da configurada. Se um novo estágio ultrapassaria o
+ * limite de memória, o último estágio continua a receber ids e a taxa de falsos positivos cresce. O filtro pode ser gravado em
+ * disco e carregado de novo. Examplo:
+ * <pre><code>
+ * DeadTokenFilter filter = Files.exists(file) ? DeadTokenFilter.load(file) : new DeadTokenFilter.Builder()
+ *    .expectedTokens(1000000)
+ *    .falsePositiveRate(0.0001)
+ *    .build();
+ * sender.setDeadTokenFilter(filter);
+ * ...
+ * filter.save(file);
+ * </code></pre>
+ * <p>
+ * As instâncias dessa classe são thread-safe.
+ *
+ * @see Sender#setDeadTokenFilter(DeadTokenFilter)
+ */
+public final class DeadTokenFilter
+{
+    /**
+     * Número de ids do primeiro estágio, se não informado.
+     */
+    public static final long DEFAULT_EXPECTED_TOKENS = 100000;
+    /**
+     * Taxa de falsos positivos, se não informada.
+     */
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.0001;
+    /**
+     * Limite de memória dos estágios, em bytes, se não informado.
+     */
+    public static final long DEFAULT_MAX_MEMORY = 64L << 20;
+
+    private static final Logger LOGGER = Logger.getLogger(DeadTokenFilter.class.getName());
+    private static final int MAGIC = 0x44544631;
+    // maior estágio em um único long[]
+    private static final long MAX_STAGE_BITS = (long)Integer.MAX_VALUE * 64;
+
+    private final long expectedTokens;
+    private final double falsePositiveRate;
+    private final long maxMemory;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<Stage> stages = new ArrayList<>();
+    private boolean saturated;
+
+    public static final class Builder
+    {
+        // parâmetros opcionais
+        private long expectedTokens = DEFAULT_EXPECTED_TOKENS;
+        private double falsePositiveRate = DEFAULT_FALSE_POSITIVE_RATE;
+        private long maxMemory = DEFAULT_MAX_MEMORY;
+
+        /**
+         * Define o número de ids do primeiro estágio (valor default é {@value DeadTokenFilter#DEFAULT_EXPECTED_TOKENS}).
+         */
+        public Builder expectedTokens(long value)
+        {
+            if(value < 1)
+            {
+                throw new IllegalArgumentException("número de ids inválido: " + value);
+            }
+            expectedTokens = value;
+            return this;
+        }
+
+        /**
+         * Define a taxa máxima de falsos positivos do filtro, entre 0 e 1 (valor default é
+         * {@value DeadTokenFilter#DEFAULT_FALSE_POSITIVE_RATE}).
+         */
+        public Builder falsePositiveRate(double value)
+        {
+            if(!(value > 0 && value < 1))
+            {
+                throw new IllegalArgumentException("taxa de falsos positivos inválida: " + value);
+            }
+            falsePositiveRate = value;
+            return this;
+        }
+
+        /**
+         * Define o limite de memória dos estágios, em bytes (valor default é {@value DeadTokenFilter#DEFAULT_MAX_MEMORY}). O
+         * primeiro estágio é sempre criado, mesmo que ultrapasse o limite.
+         */
+        public Builder maxMemory(long value)
+        {
+            if(value < 1)
+            {
+                throw new IllegalArgumentException("limite de memória inválido: " + value);
+            }
+            maxMemory = value;
+            return this;
+        }
+
+        public DeadTokenFilter build()
+        {
+            DeadTokenFilter filter = new DeadTokenFilter(expectedTokens, falsePositiveRate, maxMemory);
+            filter.stages.add(filter.newStage(0));
+            return filter;
+        }
+    }
+
+    private DeadTokenFilter(long expectedTokens, double falsePositiveRate, long maxMemory)
+    {
+        this.expectedTokens = expectedTokens;
+        this.falsePositiveRate = falsePositiveRate;
+        this.maxMemory = maxMemory;
+    }
+
+    /**
+     * Carrega um filtro gravado por {@link #save(Path)}.
+     *
+     * @param file arquivo do filtro.
+     *
+     * @return filtro com os ids e a configuração gravados.
+     *
+     * @throws IOException se o arquivo não pôde ser lido ou está corrompido.
+     */
+    public static DeadTokenFilter load(Path file) throws IOException
+    {
+        CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(file)), new CRC32());
+
+        try(DataInputStream in = new DataInputStream(checked))
+        {
+            if(in.readInt() != MAGIC)
+            {
+                throw new IOException("arquivo não é um DeadTokenFilter: " + file);
+            }
+
+            long expectedTokens = in.readLong();
+            double falsePositiveRate = in.readDouble();
+            long maxMemory = in.readLong();
+            int count = in.readInt();
+
+            if(expectedTokens < 1 || !(falsePositiveRate > 0 && falsePositiveRate < 1) || maxMemory < 1 || count < 1)
+            {
+                throw new IOException("DeadTokenFilter corrompido: " + file);
+            }
+
+            DeadTokenFilter filter = new DeadTokenFilter(expectedTokens, falsePositiveRate, maxMemory);
+            filter.saturated = in.readBoolean();
+
+            for(int i = 0; i < count; i++)
+            {
+                Stage stage = filter.newStage(i);
+                stage.count = in.readLong();
+
+                for(int word = 0; word < stage.words.length; word++)
+                {
+                    stage.words[word] = in.readLong();
+                }
+                filter.stages.add(stage);
+            }
+
+            long crc = checked.getChecksum().getValue();
+
+            if(in.readLong() != crc)
+            {
+                throw new IOException("DeadTokenFilter corrompido: " + file);
+            }
+
+            return filter;
+        }
+    }
+
+    /**
+     * Grava o filtro. O arquivo é substituído de forma atômica, de modo que um arquivo anterior continua válido se a gravação falha.
+     *
+     * @param file arquivo do filtro.
+     *
+     * @throws IOException se o arquivo não pôde ser gravado.
+     */
+    public void save(Path file) throws IOException
+    {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)), new CRC32());
+
+        lock.readLock().lock();
+
+        try(DataOutputStream out = new DataOutputStream(checked))
+        {
+            out.writeInt(MAGIC);
+            out.writeLong(expectedTokens);
+            out.writeDouble(falsePositiveRate);
+            out.writeLong(maxMemory);
+            out.writeInt(stages.size());
+            out.writeBoolean(saturated);
+
+            for(Stage stage : stages)
+            {
+                out.writeLong(stage.count);
+
+                for(long word : stage.words)
+                {
+                    out.writeLong(word);
+                }
+            }
+
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Verifica se um registration id foi registrado como inválido.
+     *
+     * @param registrationId registration id.
+     *
+     * @return {@literal true} se o id foi registrado, ou em um falso positivo.
+     */
+    public boolean mightContain(String registrationId)
+    {
+        long hash = hash(Sender.nonNull(registrationId));
+        lock.readLock().lock();
+
+        try
+        {
+            return contains(hash);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Registra um registration id como inválido.
+     *
+     * @param registrationId registration id.
+     *
+     * @return {@literal false} se o id já estava no filtro (ou em um falso positivo).
+     */
+    public boolean add(String registrationId)
+    {
+        long hash = hash(Sender.nonNull(registrationId));
+        lock.writeLock().lock();
+
+        try
+        {
+            if(contains(hash))
+            {
+                return false;
+            }
+
+            Stage stage = stages.get(stages.size() - 1);
+
+            if(stage.count >= stage.capacity && !saturated)
+            {
+                Stage next = newStage(stages.size());
+
+                if(next == null)
+                {
+                    saturated = true;
+                    LOGGER.log(Level.WARNING, "DeadTokenFilter atingiu o limite de memória com {0} ids; a taxa de falsos positivos vai"
+                            + " crescer", getCount());
+                }
+                else
+                {
+                    stages.add(next);
+                    stage = next;
+                }
+            }
+
+            stage.add(hash);
+            return true;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Obtém o número de ids registrados.
+     *
+     * @return count
+     */
+    public long getCount()
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            long count = 0;
+
+            for(Stage stage : stages)
+            {
+                count += stage.count;
+            }
+
+            return count;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Obtém a memória ocupada pelos estágios, em bytes.
+     *
+     * @return memoryUsage
+     */
+    public long getMemoryUsage()
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            return memoryUsage();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Estima a taxa atual de falsos positivos, a partir do número de ids em cada estágio.
+     *
+     * @return probabilidade de um id não registrado ser informado por {@link #mightContain(String)}.
+     */
+    public double getFalsePositiveRate()
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            double miss = 1;
+
+            for(Stage stage : stages)
+            {
+                double bits = (double)stage.words.length * 64;
+                miss *= 1 - Math.pow(1 - Math.exp(-stage.hashes * stage.count / bits), stage.hashes);
+            }
+
+            return 1 - miss;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean contains(long hash)
+    {
+        for(int i = stages.size() - 1; i >= 0; i--)
+        {
+            if(stages.get(i).contains(hash))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private long memoryUsage()
+    {
+        long total = 0;
+
+        for(Stage stage : stages)
+        {
+            total += (long)stage.words.length * 8;
+        }
+
+        return total;
+    }
+
+    /**
+     * Cria o estágio {@code level}, com capacidade {@code expectedTokens * 2^level} e taxa {@code falsePositiveRate / 2^(level+1)}.
+     *
+     * @return estágio, ou {@literal null} se ele ultrapassaria o limite de memória.
+     */
+    private Stage newStage(int level)
+    {
+        double rate = falsePositiveRate / Math.pow(2, level + 1);
+        double capacity = expectedTokens * Math.pow(2, level);
+        double bits = Math.ceil(-capacity * Math.log(rate) / (Math.log(2) * Math.log(2)));
+        int words = (int)Math.ceil(Math.min(bits, MAX_STAGE_BITS) / 64);
+
+        if(level > 0 && (bits > MAX_STAGE_BITS || memoryUsage() + (long)words * 8 > maxMemory))
+        {
+            return null;
+        }
+
+        return new Stage((long)capacity, (int)Math.ceil(-Math.log(rate) / Math.log(2)), words);
+    }
+
+    /**
+     * Hash de 64 bits (FNV-1a seguido de uma mistura final).
+     */
+    private static long hash(String value)
+    {
+        long hash = 0xcbf29ce484222325L;
+
+        for(int i = 0; i < value.length(); i++)
+        {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+    /**
+     * Filtro de Bloom com {@code hashes} posições por id, derivadas do hash de 64 bits por hash duplo.
+     */
+    private static final class Stage
+    {
+        private final long capacity;
+        private final int hashes;
+        private final long[] words;
+        private long count;
+
+        Stage(long capacity, int hashes, int words)
+        {
+            this.capacity = capacity;
+            this.hashes = hashes;
+            this.words = new long[words];
+        }
+
+        boolean contains(long hash)
+        {
+            long bits = (long)words.length * 64;
+            long step = step(hash);
+
+            for(int i = 0; i < hashes; i++)
+            {
+                long bit = Long.remainderUnsigned(hash + i * step, bits);
+
+                if((words[(int)(bit >>> 6)] & (1L << bit)) == 0)
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        void add(long hash)
+        {
+            long bits = (long)words.length * 64;
+            long step = step(hash);
+
+            for(int i = 0; i < hashes; i++)
+            {
+                long bit = Long.remainderUnsigned(hash + i * step, bits);
+                words[(int)(bit >>> 6)] |= 1L << bit;
+            }
+            count++;
+        }
+
+        /**
+         * Segundo hash, ímpar para percorrer posições distintas.
+         */
+        private static long step(long hash)
+        {
+            long step = hash * 0xc4ceb9fe1a85ec53L;
+            step ^= step >>> 29;
+
+            return step | 1;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.gcm.server.http;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Back-off com "decorrelated jitter": cada atraso é sorteado entre o atraso base e o triplo do atraso anterior, limitado ao máximo.
+ * <p>
+ * Espalha melhor as novas tentativas de muitos envios simultâneos do que {@link ExponentialBackoff}, evitando que todos voltem ao
+ * GCM ao mesmo tempo depois de uma indisponibilidade.
+ */
+public final class DecorrelatedJitterBackoff implements BackoffPolicy
+{
+    private final long baseDelay;
+    private final long maxDelay;
+
+    /**
+     * @param baseDelay atraso mínimo, em milissegundos.
+     * @param maxDelay  atraso máximo, em milissegundos.
+     */
+    public DecorrelatedJitterBackoff(long baseDelay, long maxDelay)
+    {
+        if(baseDelay < 1 || maxDelay < baseDelay)
+        {
+            throw new IllegalArgumentException("intervalos inválidos: " + baseDelay + ", " + maxDelay);
+        }
+
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    @Override
+    public long nextDelay(int retry, long previousDelay)
+    {
+        long upper = Math.min(maxDelay, Math.max(baseDelay, previousDelay * 3));
+        return baseDelay + ThreadLocalRandom.current().nextLong(upper - baseDelay + 1);
+    }
+}
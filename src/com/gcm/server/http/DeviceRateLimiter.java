@@ -0,0 +1,226 @@
+package com.gcm.server.http;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limita a taxa de mensagens enviadas para cada dispositivo, evitando {@link ErrorCode#DEVICE_QUOTA_EXCEEDED}.
+ * <p>
+ * Cada registration id pode receber até {@code limit} mensagens de uma vez e, depois disso, uma a cada {@code period / limit}
+ * milissegundos. O estado de cada dispositivo é um único instante (o próximo envio permitido sem espera), guardado em uma tabela
+ * hash de endereçamento aberto indexada por um hash de 64 bits do registration id: são 16 bytes por dispositivo ativo, sem objetos
+ * por entrada. Dispositivos que voltaram a ficar livres são removidos sempre que a tabela enche, de modo que a memória acompanha
+ * o número de dispositivos recentemente ativos, e não o total. A tabela é dividida em segmentos com locks próprios.
+ * <p>
+ * Um limitador não descarta envios: {@link #reserve(String)} informa quanto o envio deve aguardar. O {@link DispatchPipeline}
+ * adia os envios para dispositivos acima do limite. Examplo:
+ * <pre><code>
+ * DispatchPipeline pipeline = new DispatchPipeline.Builder(sender)
+ *    .deviceRateLimiter(new DeviceRateLimiter(10, 60000))
+ *    .build();
+ * </code></pre>
+ * <p>
+ * As instâncias dessa classe são thread-safe.
+ */
+public final class DeviceRateLimiter
+{
+    private static final int SEGMENTS = 16;
+    private static final int INITIAL_SEGMENT_CAPACITY = 1024;
+
+    private final long interval;
+    private final long tolerance;
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /**
+     * @param limit  número de mensagens permitidas por dispositivo no período.
+     * @param period período, em milissegundos.
+     */
+    public DeviceRateLimiter(int limit, long period)
+    {
+        if(limit < 1 || period < 1)
+        {
+            throw new IllegalArgumentException("limite inválido: " + limit + " mensagens em " + period + " ms");
+        }
+
+        interval = TimeUnit.MILLISECONDS.toNanos(period) / limit;
+        tolerance = interval * (limit - 1);
+
+        for(int i = 0; i < SEGMENTS; i++)
+        {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Reserva um envio para o dispositivo.
+     *
+     * @param registrationId registration id do dispositivo.
+     *
+     * @return quanto o envio deve aguardar, em milissegundos; 0 se pode ser feito imediatamente.
+     */
+    public long reserve(String registrationId)
+    {
+        long hash = hash(Sender.nonNull(registrationId));
+        long now = System.nanoTime();
+        long wait = segments[(int)(hash >>> 60)].reserve(hash, now, 0);
+
+        return wait <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+    }
+
+    /**
+     * Registra que o GCM recusou um envio ao dispositivo com {@link ErrorCode#DEVICE_QUOTA_EXCEEDED} e reserva um novo envio como se
+     * o dispositivo tivesse esgotado o seu limite agora.
+     *
+     * @param registrationId registration id do dispositivo.
+     *
+     * @return quanto o novo envio deve aguardar, em milissegundos.
+     */
+    public long penalize(String registrationId)
+    {
+        long hash = hash(Sender.nonNull(registrationId));
+        long now = System.nanoTime();
+        Segment segment = segments[(int)(hash >>> 60)];
+
+        // consumir toda a rajada, como se o limite tivesse sido atingido agora
+        segment.reserve(hash, now, tolerance);
+        long wait = segment.reserve(hash, now, 0);
+
+        return wait <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+    }
+
+    /**
+     * Obtém o número de dispositivos com estado na tabela.
+     *
+     * @return size
+     */
+    public int size()
+    {
+        int size = 0;
+
+        for(Segment segment : segments)
+        {
+            synchronized(segment)
+            {
+                size += segment.size;
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Hash de 64 bits (FNV-1a seguido de uma mistura final), nunca 0, que marca as posições vazias.
+     */
+    private static long hash(String value)
+    {
+        long hash = 0xcbf29ce484222325L;
+
+        for(int i = 0; i < value.length(); i++)
+        {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Tabela de endereçamento aberto com sondagem linear: {@code keys[i]} é o hash do dispositivo e {@code times[i]} o instante
+     * teórico do próximo envio (GCRA).
+     */
+    private final class Segment
+    {
+        private long[] keys = new long[INITIAL_SEGMENT_CAPACITY];
+        private long[] times = new long[INITIAL_SEGMENT_CAPACITY];
+        private int size;
+
+        /**
+         * Reserva um envio, somando {@code extra} ao intervalo normal.
+         *
+         * @return quanto o envio deve aguardar, em nanossegundos.
+         */
+        synchronized long reserve(long hash, long now, long extra)
+        {
+            int mask = keys.length - 1;
+            int index = (int)hash & mask;
+
+            while(keys[index] != 0 && keys[index] != hash)
+            {
+                index = (index + 1) & mask;
+            }
+
+            long time;
+
+            if(keys[index] == 0)
+            {
+                if(size + 1 > keys.length * 3 / 4)
+                {
+                    rebuild(now);
+                    return reserve(hash, now, extra);
+                }
+
+                keys[index] = hash;
+                size++;
+                time = now;
+            }
+            else
+            {
+                time = Math.max(times[index], now);
+            }
+
+            times[index] = time + interval + extra;
+            return time - tolerance - now;
+        }
+
+        /**
+         * Remove os dispositivos que já podem receber uma rajada completa, equivalentes a um dispositivo novo, e dobra a tabela se
+         * ela continuar cheia.
+         */
+        private void rebuild(long now)
+        {
+            long[] oldKeys = keys;
+            long[] oldTimes = times;
+            int live = 0;
+
+            for(int i = 0; i < oldKeys.length; i++)
+            {
+                if(oldKeys[i] != 0 && oldTimes[i] > now)
+                {
+                    live++;
+                }
+            }
+
+            int capacity = oldKeys.length;
+
+            while(live + 1 > capacity / 2)
+            {
+                capacity <<= 1;
+            }
+
+            keys = new long[capacity];
+            times = new long[capacity];
+            size = 0;
+            int mask = capacity - 1;
+
+            for(int i = 0; i < oldKeys.length; i++)
+            {
+                if(oldKeys[i] != 0 && oldTimes[i] > now)
+                {
+                    int index = (int)oldKeys[i] & mask;
+
+                    while(keys[index] != 0)
+                    {
+                        index = (index + 1) & mask;
+                    }
+
+                    keys[index] = oldKeys[i];
+                    times[index] = oldTimes[i];
+                    size++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,1181 @@
+package com.gcm.server.http;
+
+import static com.gcm.server.http.Constants.MAX_MULTICAST_SIZE;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fila de envios na frente de um {@link Sender}.
+ * <p>
+ * Os produtores apenas colocam o par (mensagem, registration id) em uma fila circular limitada e sem locks; um número fixo de
+ * consumidores retira os envios da fila, agrupa os da mesma mensagem em multicasts de até {@value Constants#MAX_MULTICAST_SIZE}
+ * registration ids e os envia de forma assíncrona pelo sender. O consumidor não aguarda o multicast: volta à fila enquanto ele é
+ * enviado ou aguarda o back-off das novas tentativas. O número de multicasts em andamento de cada fila é limitado (veja
+ * {@link Builder#maxInFlight(int)}), qualquer que seja o número de threads produtoras, e um pico de tráfego ocupa a fila em vez de
+ * criar threads. Quando a fila está cheia, o {@link OverflowPolicy} decide entre aguardar, recusar ou descartar.
+ * <p>
+ * Cada {@link Message.Priority} tem a sua própria fila e os seus próprios consumidores. Os consumidores de
+ * {@link Message.Priority#HIGH} atendem apenas essa fila, de modo que uma mensagem de alta prioridade nunca espera por um
+ * multicast de uma campanha em andamento, nem pelas novas tentativas de outro multicast de alta prioridade; os de
+ * {@link Message.Priority#NORMAL} também atendem a fila de alta prioridade antes da sua, sempre que ela tiver envios. Mensagens sem
+ * prioridade definida vão para a fila normal. As tentativas dos multicasts de alta prioridade são executadas no executor de
+ * prioridade do sender (veja {@link Sender#setPriorityExecutor(ExecutorService)}), e não aguardam as tentativas
+ * dos envios normais; com um {@link AdaptiveRateLimiter} no sender, também não aguardam os tokens reservados por eles.
+ * <p>
+ * Com um {@link DeviceRateLimiter}, os envios para dispositivos acima do limite são adiados, e não descartados: saem do lote e
+ * voltam para a fila quando o dispositivo puder recebê-los. Os que mesmo assim falharem com
+ * {@link ErrorCode#DEVICE_QUOTA_EXCEEDED} são adiados novamente, até o número de novas tentativas.
+ * <p>
+ * Mensagens com collapse key substituem os envios ainda não feitos para o mesmo par (registration id, collapse key): quando o envio
+ * mais novo sai da fila, o mais antigo é retirado do lote, ou deixa de ser repetido se estiver aguardando o back-off, e o seu future
+ * é completado com o resultado do envio mais novo (veja {@link #getCollapsedCount()}). Um envio mais novo descartado pelo
+ * {@link OverflowPolicy#SHED} não substitui o anterior.
+ * <p>
+ * O time to live de cada envio é contado a partir do {@link #submit(Message, String)}. Envios cujo time to live terminou enquanto
+ * aguardavam na fila, adiados ou no back-off do sender são descartados e completados com um resultado {@link ErrorCode#EXPIRED}
+ * (veja {@link #getExpiredCount()}); os envios da mesma mensagem só são agrupados no mesmo multicast se foram feitos no mesmo
+ * segundo, de modo que o time to live enviado ao GCM é o de cada um deles. Examplo:
+ * <pre><code>
+ * DispatchPipeline pipeline = new DispatchPipeline.Builder(sender)
+ *    .capacity(65536)
+ *    .consumers(8)
+ *    .consumers(Message.Priority.HIGH, 2)
+ *    .overflowPolicy(OverflowPolicy.BLOCK)
+ *    .deviceRateLimiter(new DeviceRateLimiter(10, 60000))
+ *    .build();
+ *
+ * pipeline.submit(message, regId).thenAccept(...);
+ * </code></pre>
+ * <p>
+ * As instâncias dessa classe são thread-safe.
+ */
+public final class DispatchPipeline implements AutoCloseable
+{
+    private static final Logger LOGGER = Logger.getLogger(DispatchPipeline.class.getName());
+
+    /**
+     * Capacidade default da fila.
+     */
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    /**
+     * Número default de consumidores da fila normal.
+     */
+    public static final int DEFAULT_CONSUMERS = 4;
+
+    /**
+     * Número default de consumidores exclusivos da fila de alta prioridade.
+     */
+    public static final int DEFAULT_HIGH_PRIORITY_CONSUMERS = 1;
+
+    private static final Message.Priority[] PRIORITIES = Message.Priority.values();
+
+    /**
+     * Número default de novas tentativas de cada multicast.
+     */
+    public static final int DEFAULT_RETRIES = 5;
+
+    /**
+     * Número default de multicasts em andamento por fila.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    // espera de um consumidor ou produtor ocioso entre duas verificações da fila; depois dela a thread bloqueia até ser sinalizada
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Sender sender;
+    // uma fila por prioridade, na ordem de Message.Priority
+    private final Lane[] lanes;
+    private final OverflowPolicy overflowPolicy;
+    private final int retries;
+    private final int maxInFlight;
+    private final DeviceRateLimiter deviceRateLimiter;
+    private final ExecutorService consumers;
+    private volatile boolean closed;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder deferred = new LongAdder();
+    private final LongAdder collapsed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    // envio mais novo de cada par (registration id, collapse key) ainda não concluído
+    private final Map<CollapseKey, Work> latest = new ConcurrentHashMap<>();
+    // envios adiados aguardando para voltar à fila
+    private final AtomicInteger waiting = new AtomicInteger();
+    // consumidores e produtores bloqueados, sinalizados apenas quando há algum
+    private final ReentrantLock idleLock = new ReentrantLock();
+    private final Condition workAvailable = idleLock.newCondition();
+    private final Condition spaceAvailable = idleLock.newCondition();
+    private final AtomicInteger idleConsumers = new AtomicInteger();
+    private final AtomicInteger idleProducers = new AtomicInteger();
+
+    public static final class Builder
+    {
+        // parâmetros necessários
+        private final Sender sender;
+
+        // parâmetros opcionais
+        private int capacity = DEFAULT_CAPACITY;
+        private final int[] consumers = new int[PRIORITIES.length];
+        private int retries = DEFAULT_RETRIES;
+        private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+        private DeviceRateLimiter deviceRateLimiter;
+
+        public Builder(Sender sender)
+        {
+            this.sender = Sender.nonNull(sender);
+            consumers[Message.Priority.NORMAL.ordinal()] = DEFAULT_CONSUMERS;
+            consumers[Message.Priority.HIGH.ordinal()] = DEFAULT_HIGH_PRIORITY_CONSUMERS;
+        }
+
+        /**
+         * Define a capacidade de cada fila, arredondada para a próxima potência de 2 (valor default é
+         * {@value DispatchPipeline#DEFAULT_CAPACITY}).
+         */
+        public Builder capacity(int value)
+        {
+            capacity = value;
+            return this;
+        }
+
+        /**
+         * Define o número de consumidores da fila normal (valor default é {@value DispatchPipeline#DEFAULT_CONSUMERS}).
+         */
+        public Builder consumers(int value)
+        {
+            return consumers(Message.Priority.NORMAL, value);
+        }
+
+        /**
+         * Define o número de consumidores de uma prioridade, que retiram os envios da fila e iniciam os multicasts (valores default
+         * são {@value DispatchPipeline#DEFAULT_CONSUMERS} para {@link Message.Priority#NORMAL} e
+         * {@value DispatchPipeline#DEFAULT_HIGH_PRIORITY_CONSUMERS} para {@link Message.Priority#HIGH}).
+         */
+        public Builder consumers(Message.Priority priority, int value)
+        {
+            if(value < (priority == Message.Priority.NORMAL ? 1 : 0))
+            {
+                throw new IllegalArgumentException("número de consumidores inválido: " + value);
+            }
+            consumers[priority.ordinal()] = value;
+            return this;
+        }
+
+        /**
+         * Define o número de novas tentativas de cada multicast em caso de indisponibilidade (valor default é
+         * {@value DispatchPipeline#DEFAULT_RETRIES}).
+         */
+        public Builder retries(int value)
+        {
+            if(value < 0)
+            {
+                throw new IllegalArgumentException("retries não pode ser negativo");
+            }
+            retries = value;
+            return this;
+        }
+
+        /**
+         * Define o número máximo de multicasts em andamento de cada fila, sendo enviados ou aguardando o back-off (valor default é
+         * {@value DispatchPipeline#DEFAULT_MAX_IN_FLIGHT}). Quando ele é atingido, os consumidores deixam de retirar envios dessa
+         * fila até um multicast terminar.
+         */
+        public Builder maxInFlight(int value)
+        {
+            if(value < 1)
+            {
+                throw new IllegalArgumentException("maxInFlight deve ser maior que 0");
+            }
+            maxInFlight = value;
+            return this;
+        }
+
+        /**
+         * Define o que fazer quando a fila está cheia (valor default é {@link OverflowPolicy#BLOCK}).
+         */
+        public Builder overflowPolicy(OverflowPolicy value)
+        {
+            overflowPolicy = Sender.nonNull(value);
+            return this;
+        }
+
+        /**
+         * Define o limite de mensagens por dispositivo; por padrão não há limite.
+         */
+        public Builder deviceRateLimiter(DeviceRateLimiter value)
+        {
+            deviceRateLimiter = value;
+            return this;
+        }
+
+        /**
+         * Cria o pipeline e inicia os consumidores.
+         */
+        public DispatchPipeline build()
+        {
+            return new DispatchPipeline(this);
+        }
+    }
+
+    private DispatchPipeline(Builder builder)
+    {
+        sender = builder.sender;
+        overflowPolicy = builder.overflowPolicy;
+        retries = builder.retries;
+        maxInFlight = builder.maxInFlight;
+        deviceRateLimiter = builder.deviceRateLimiter;
+        lanes = new Lane[PRIORITIES.length];
+
+        for(int i = 0; i < lanes.length; i++)
+        {
+            lanes[i] = new Lane(builder.capacity);
+        }
+
+        consumers = Executors.newFixedThreadPool(Arrays.stream(builder.consumers).sum(),
+                SenderThreads.newThreadFactory("gcm-pipeline-"));
+
+        Lane high = lanes[Message.Priority.HIGH.ordinal()];
+        Lane normal = lanes[Message.Priority.NORMAL.ordinal()];
+
+        for(int i = 0; i < builder.consumers[Message.Priority.HIGH.ordinal()]; i++)
+        {
+            consumers.execute(() -> consume(high));
+        }
+        for(int i = 0; i < builder.consumers[Message.Priority.NORMAL.ordinal()]; i++)
+        {
+            consumers.execute(() -> consume(high, normal));
+        }
+    }
+
+    /**
+     * Coloca na fila o envio de uma mensagem para um dispositivo.
+     *
+     * @param message        mensagem a ser enviada.
+     * @param registrationId dispositivo em que a mensagem será enviada.
+     *
+     * @return future com o resultado do envio; completa com {@link IOException} se o multicast não pôde ser enviado, ou com
+     *         {@link RejectedExecutionException} se o envio foi descartado pelo {@link OverflowPolicy#SHED}.
+     *
+     * @throws RejectedExecutionException se o pipeline foi fechado, se a fila está cheia e a política é
+     *                                    {@link OverflowPolicy#FAIL}, ou se a thread foi interrompida enquanto aguardava.
+     */
+    public CompletableFuture<Result> submit(Message message, String registrationId)
+    {
+        return submit(new Work(Sender.nonNull(message), null, Sender.nonNull(registrationId)));
+    }
+
+    /**
+     * Coloca na fila o envio de uma mensagem já serializada para um dispositivo. Consulte {@link #submit(Message, String)}.
+     *
+     * @param message        mensagem a ser enviada.
+     * @param registrationId dispositivo em que a mensagem será enviada.
+     *
+     * @return future com o resultado do envio.
+     *
+     * @throws RejectedExecutionException se o envio não pôde ser colocado na fila.
+     */
+    public CompletableFuture<Result> submit(PreparedMessage message, String registrationId)
+    {
+        return submit(new Work(Sender.nonNull(message).getMessage(), message, Sender.nonNull(registrationId)));
+    }
+
+    private CompletableFuture<Result> submit(Work work)
+    {
+        RingBuffer<Work> queue = lanes[work.priority.ordinal()].queue;
+        Work previous = work.collapseKey == null ? null : latest.put(work.collapseKey, work);
+        work.supersedes = previous;
+
+        try
+        {
+            offer(queue, work);
+        }
+        catch(RejectedExecutionException e)
+        {
+            // o envio anterior continua sendo o mais novo
+            if(previous != null && !latest.replace(work.collapseKey, work, previous))
+            {
+                latest.remove(work.collapseKey, work);
+            }
+            throw e;
+        }
+
+        if(work.collapseKey != null)
+        {
+            work.future.whenComplete((result, error) -> latest.remove(work.collapseKey, work));
+        }
+
+        submitted.increment();
+        return work.future;
+    }
+
+    private void offer(RingBuffer<Work> queue, Work work)
+    {
+        long parkNanos = 1;
+
+        while(!queue.offer(work))
+        {
+            if(closed)
+            {
+                break;
+            }
+
+            switch(overflowPolicy)
+            {
+                case FAIL:
+                    rejected.increment();
+                    throw new RejectedExecutionException("Fila de envios cheia");
+                case SHED:
+                    Work oldest = queue.poll();
+
+                    // um envio já recusado ao seu produtor apenas sai da fila
+                    if(oldest != null && oldest.claim())
+                    {
+                        shed.increment();
+                        oldest.future.completeExceptionally(new RejectedExecutionException("Envio descartado, fila de envios cheia"));
+                    }
+                    break;
+                default:
+                    if(parkNanos <= MAX_PARK_NANOS)
+                    {
+                        LockSupport.parkNanos(parkNanos);
+                        parkNanos *= 2;
+                    }
+                    else
+                    {
+                        awaitSpace(queue);
+                    }
+
+                    if(Thread.currentThread().isInterrupted())
+                    {
+                        rejected.increment();
+                        throw new RejectedExecutionException("Interrompido aguardando espaço na fila de envios");
+                    }
+                    break;
+            }
+        }
+
+        signalConsumers();
+
+        // o envio pode ter entrado na fila depois que os consumidores a esvaziaram; se um consumidor já o retirou, ele será enviado
+        if(closed && work.claim())
+        {
+            rejected.increment();
+            work.future.completeExceptionally(new RejectedExecutionException("Pipeline fechado"));
+            throw new RejectedExecutionException("Pipeline fechado");
+        }
+    }
+
+    /**
+     * Para de aceitar envios, aguarda os consumidores enviarem o que está na fila e os multicasts em andamento terminarem, e encerra
+     * as threads.
+     * <p>
+     * Se a thread for interrompida enquanto aguarda, o flag de interrupção é restaurado e o método retorna sem aguardar; os
+     * consumidores continuam a esvaziar a fila.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        consumers.shutdown();
+        signalAll();
+
+        try
+        {
+            while(!consumers.awaitTermination(1, TimeUnit.SECONDS))
+            {
+                LOGGER.log(Level.FINE, "Aguardando {0} envios na fila", getQueueDepth());
+            }
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        // envios que entraram na fila depois do último consumidor terminar
+        for(Lane lane : lanes)
+        {
+            Work work;
+
+            while((work = lane.queue.poll()) != null)
+            {
+                if(work.claim())
+                {
+                    work.future.completeExceptionally(new RejectedExecutionException("Pipeline fechado"));
+                }
+            }
+        }
+    }
+
+    /**
+     * Obtém o número de envios aguardando em todas as filas.
+     *
+     * @return queueDepth
+     */
+    public int getQueueDepth()
+    {
+        int depth = 0;
+
+        for(Lane lane : lanes)
+        {
+            depth += lane.queue.size();
+        }
+
+        return depth;
+    }
+
+    /**
+     * Obtém o número de envios aguardando na fila de uma prioridade.
+     *
+     * @param priority prioridade da fila.
+     *
+     * @return queueDepth
+     */
+    public int getQueueDepth(Message.Priority priority)
+    {
+        return lanes[priority.ordinal()].queue.size();
+    }
+
+    /**
+     * Obtém a capacidade de cada fila.
+     *
+     * @return capacity
+     */
+    public int getCapacity()
+    {
+        return lanes[0].queue.capacity();
+    }
+
+    /**
+     * Obtém o número de envios aceitos na fila.
+     *
+     * @return submitted
+     */
+    public long getSubmittedCount()
+    {
+        return submitted.sum();
+    }
+
+    /**
+     * Obtém o número de envios recusados, pela política {@link OverflowPolicy#FAIL}, por interrupção ou pelo fechamento do pipeline.
+     *
+     * @return rejected
+     */
+    public long getRejectedCount()
+    {
+        return rejected.sum();
+    }
+
+    /**
+     * Obtém o número de envios descartados pela política {@link OverflowPolicy#SHED}.
+     *
+     * @return shed
+     */
+    public long getShedCount()
+    {
+        return shed.sum();
+    }
+
+    /**
+     * Obtém o número de envios que não foram feitos, ou não foram repetidos, por terem sido substituídos por uma mensagem mais nova
+     * com a mesma collapse key para o mesmo dispositivo.
+     *
+     * @return collapsed
+     */
+    public long getCollapsedCount()
+    {
+        return collapsed.sum();
+    }
+
+    /**
+     * Obtém o número de envios descartados porque o time to live da mensagem terminou antes de ela ser aceita pelo GCM.
+     *
+     * @return expired
+     */
+    public long getExpiredCount()
+    {
+        return expired.sum();
+    }
+
+    /**
+     * Obtém o número de vezes que um envio foi adiado pelo {@link DeviceRateLimiter}.
+     *
+     * @return deferred
+     */
+    public long getDeferredCount()
+    {
+        return deferred.sum();
+    }
+
+    /**
+     * Obtém o tempo médio que os envios aguardaram na fila, em nanossegundos.
+     *
+     * @return averageWaitTime
+     */
+    public long getAverageWaitTime()
+    {
+        long count = 0, total = 0;
+
+        for(Lane lane : lanes)
+        {
+            count += lane.dispatched.sum();
+            total += lane.waitTime.sum();
+        }
+
+        return count == 0 ? 0 : total / count;
+    }
+
+    /**
+     * Obtém o maior tempo que um envio aguardou na fila, em nanossegundos.
+     *
+     * @return maxWaitTime
+     */
+    public long getMaxWaitTime()
+    {
+        long max = 0;
+
+        for(Lane lane : lanes)
+        {
+            max = Math.max(max, lane.maxWaitTime.get());
+        }
+
+        return max;
+    }
+
+    /**
+     * Obtém o tempo médio que os envios de uma prioridade aguardaram na fila, em nanossegundos.
+     *
+     * @param priority prioridade da fila.
+     *
+     * @return averageWaitTime
+     */
+    public long getAverageWaitTime(Message.Priority priority)
+    {
+        Lane lane = lanes[priority.ordinal()];
+        long count = lane.dispatched.sum();
+        return count == 0 ? 0 : lane.waitTime.sum() / count;
+    }
+
+    /**
+     * Obtém o maior tempo que um envio de uma prioridade aguardou na fila, em nanossegundos.
+     *
+     * @param priority prioridade da fila.
+     *
+     * @return maxWaitTime
+     */
+    public long getMaxWaitTime(Message.Priority priority)
+    {
+        return lanes[priority.ordinal()].maxWaitTime.get();
+    }
+
+    /**
+     * Laço de um consumidor: retira envios da primeira fila que tiver algum e os envia, até o pipeline ser fechado e as filas
+     * esvaziadas.
+     *
+     * @param lanes filas atendidas, em ordem de prioridade.
+     */
+    private void consume(Lane... lanes)
+    {
+        List<Work> batch = new ArrayList<>(MAX_MULTICAST_SIZE);
+        long parkNanos = 1;
+
+        for(;;)
+        {
+            Lane source = null;
+
+            for(Lane lane : lanes)
+            {
+                // fila com o máximo de multicasts em andamento, aguardar algum terminar
+                if(lane.inFlight.get() >= maxInFlight)
+                {
+                    continue;
+                }
+
+                Work work;
+
+                while(batch.size() < MAX_MULTICAST_SIZE && (work = lane.queue.poll()) != null)
+                {
+                    batch.add(work);
+                }
+
+                if(!batch.isEmpty())
+                {
+                    lane.recordWaitTime(batch);
+                    source = lane;
+                    break;
+                }
+            }
+
+            if(batch.isEmpty())
+            {
+                if(isDone())
+                {
+                    return;
+                }
+
+                if(parkNanos <= MAX_PARK_NANOS)
+                {
+                    LockSupport.parkNanos(parkNanos);
+                    parkNanos *= 2;
+                }
+                else
+                {
+                    awaitWork(lanes);
+                }
+                continue;
+            }
+
+            parkNanos = 1;
+            signalProducers();
+
+            try
+            {
+                dispatch(source, batch);
+            }
+            catch(RuntimeException e)
+            {
+                LOGGER.log(Level.WARNING, "Falha ao enviar lote do pipeline", e);
+                batch.forEach((item) -> item.future.completeExceptionally(e));
+            }
+
+            batch.clear();
+        }
+    }
+
+    /**
+     * Bloqueia um consumidor ocioso até algum envio de uma das suas filas poder ser retirado, ou o pipeline terminar.
+     */
+    private void awaitWork(Lane[] lanes)
+    {
+        // incrementado antes de verificar as filas: quem muda o estado depois disso vê o consumidor e o sinaliza
+        idleConsumers.incrementAndGet();
+        idleLock.lock();
+
+        try
+        {
+            while(!hasWork(lanes) && !isDone())
+            {
+                workAvailable.awaitUninterruptibly();
+            }
+        }
+        finally
+        {
+            idleLock.unlock();
+            idleConsumers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Bloqueia um produtor até a fila ter espaço ou o pipeline ser fechado. Uma interrupção apenas restaura o flag de interrupção.
+     */
+    private void awaitSpace(RingBuffer<Work> queue)
+    {
+        idleProducers.incrementAndGet();
+        idleLock.lock();
+
+        try
+        {
+            while(queue.size() >= queue.capacity() && !closed)
+            {
+                spaceAvailable.await();
+            }
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            idleLock.unlock();
+            idleProducers.decrementAndGet();
+        }
+    }
+
+    private void signalConsumers()
+    {
+        if(idleConsumers.get() > 0)
+        {
+            signal(workAvailable);
+        }
+    }
+
+    private void signalProducers()
+    {
+        if(idleProducers.get() > 0)
+        {
+            signal(spaceAvailable);
+        }
+    }
+
+    private void signalAll()
+    {
+        signal(workAvailable);
+        signal(spaceAvailable);
+    }
+
+    private void signal(Condition condition)
+    {
+        idleLock.lock();
+
+        try
+        {
+            // os consumidores de alta prioridade não atendem a fila normal, um único sinal poderia acordar o consumidor errado
+            condition.signalAll();
+        }
+        finally
+        {
+            idleLock.unlock();
+        }
+    }
+
+    private boolean hasWork(Lane[] lanes)
+    {
+        for(Lane lane : lanes)
+        {
+            if(lane.inFlight.get() < maxInFlight && lane.queue.size() > 0)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Indica se o pipeline foi fechado e não há mais envios: os multicasts em andamento ainda podem adiar envios de volta para a
+     * fila.
+     */
+    private boolean isDone()
+    {
+        return closed && waiting.get() == 0 && isIdle();
+    }
+
+    private boolean isIdle()
+    {
+        for(Lane lane : lanes)
+        {
+            if(lane.inFlight.get() > 0)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Agrupa os envios da mesma mensagem e envia cada grupo como um multicast.
+     */
+    private void dispatch(Lane lane, List<Work> batch)
+    {
+        Map<Message, PreparedMessage> encoded = new IdentityHashMap<>();
+        Map<GroupKey, List<Work>> groups = new HashMap<>();
+        List<Work> ready = new ArrayList<>(batch.size());
+
+        for(Work work : batch)
+        {
+            // recusado ao produtor que encontrou o pipeline fechado
+            if(!work.claim())
+            {
+                continue;
+            }
+
+            if(work.supersededBy != null)
+            {
+                // o envio ainda mais antigo também fica com o resultado do mais novo
+                supersede(work, work.supersededBy);
+                collapse(work);
+                continue;
+            }
+
+            if(work.message.isExpired(work.submittedAt))
+            {
+                expired.increment();
+                work.future.complete(Result.EXPIRED);
+                continue;
+            }
+
+            // dispositivo acima do limite: a vaga já fica reservada e o envio volta para a fila quando ela chegar
+            if(deviceRateLimiter != null && !work.reserved)
+            {
+                long delay = deviceRateLimiter.reserve(work.registrationId);
+
+                if(delay > 0)
+                {
+                    work.reserved = true;
+                    defer(work, delay);
+                    continue;
+                }
+            }
+
+            ready.add(work);
+            supersede(work, work);
+        }
+
+        for(Work work : ready)
+        {
+            // substituído por um envio mais novo do mesmo lote
+            if(work.supersededBy != null)
+            {
+                collapse(work);
+                continue;
+            }
+
+            PreparedMessage message = work.prepared;
+
+            if(message == null)
+            {
+                message = encoded.computeIfAbsent(work.message, PreparedMessage::new);
+            }
+
+            groups.computeIfAbsent(new GroupKey(message, work), (key) -> new ArrayList<>()).add(work);
+        }
+
+        for(Map.Entry<GroupKey, List<Work>> group : groups.entrySet())
+        {
+            send(lane, group.getKey().message, group.getValue());
+        }
+    }
+
+    /**
+     * Inicia o multicast de um grupo; os futures são completados quando ele termina, sem bloquear o consumidor.
+     */
+    private void send(Lane lane, PreparedMessage message, List<Work> group)
+    {
+        List<String> regIds = new ArrayList<>(group.size());
+        long startedAt = Long.MAX_VALUE;
+
+        for(Work work : group)
+        {
+            regIds.add(work.registrationId);
+            startedAt = Math.min(startedAt, work.submittedAt);
+        }
+
+        lane.inFlight.incrementAndGet();
+
+        try
+        {
+            sender.sendAsync(message, regIds, retries, null, (index) ->
+            {
+                Work work = group.get(index);
+                work.collapsed = work.supersededBy != null;
+                return work.collapsed;
+            }, startedAt).whenComplete((multicastResult, error) ->
+            {
+                try
+                {
+                    complete(group, multicastResult, error);
+                }
+                finally
+                {
+                    lane.inFlight.decrementAndGet();
+                    signalConsumers();
+                }
+            });
+        }
+        catch(RuntimeException e)
+        {
+            lane.inFlight.decrementAndGet();
+            signalConsumers();
+            group.forEach((work) -> work.future.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * Completa os envios de um grupo com o resultado do multicast, adiando novamente os que excederam a cota do dispositivo.
+     */
+    private void complete(List<Work> group, MulticastResult multicastResult, Throwable error)
+    {
+        if(error != null)
+        {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            group.forEach((work) -> work.future.completeExceptionally(cause));
+            return;
+        }
+
+        try
+        {
+            List<Result> results = multicastResult.getResults();
+
+            for(int i = 0; i < group.size(); i++)
+            {
+                Work work = group.get(i);
+
+                if(work.collapsed)
+                {
+                    collapse(work);
+                    continue;
+                }
+
+                if(deviceRateLimiter != null && multicastResult.getErrorCode(i) == ErrorCode.DEVICE_QUOTA_EXCEEDED
+                        && work.deferrals < retries)
+                {
+                    work.deferrals++;
+                    work.reserved = true;
+                    defer(work, deviceRateLimiter.penalize(work.registrationId));
+                    continue;
+                }
+
+                if(multicastResult.getErrorCode(i) == ErrorCode.EXPIRED)
+                {
+                    expired.increment();
+                }
+
+                work.future.complete(results.get(i));
+            }
+        }
+        catch(RuntimeException e)
+        {
+            LOGGER.log(Level.WARNING, "Falha ao completar lote do pipeline", e);
+            group.forEach((work) -> work.future.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * Marca o envio anterior a {@code work} como substituído por {@code newest}, que já saiu da fila. Enquanto o envio mais novo
+     * está na fila ele ainda pode ser descartado pelo {@link OverflowPolicy#SHED}, e o anterior precisa continuar válido.
+     */
+    private static void supersede(Work work, Work newest)
+    {
+        if(work.supersedes != null)
+        {
+            work.supersedes.supersededBy = newest;
+            work.supersedes = null;
+        }
+    }
+
+    /**
+     * Descarta um envio substituído, completando-o com o resultado do envio mais novo.
+     */
+    private void collapse(Work work)
+    {
+        collapsed.increment();
+        work.supersededBy.future.whenComplete((result, error) ->
+        {
+            if(error != null)
+            {
+                work.future.completeExceptionally(error);
+            }
+            else
+            {
+                work.future.complete(result);
+            }
+        });
+    }
+
+    /**
+     * Devolve um envio à sua fila depois do atraso.
+     */
+    private void defer(Work work, long delay)
+    {
+        deferred.increment();
+        waiting.incrementAndGet();
+
+        try
+        {
+            sender.getScheduler().schedule(() -> requeue(work), delay, TimeUnit.MILLISECONDS);
+        }
+        catch(RejectedExecutionException e)
+        {
+            waiting.decrementAndGet();
+            signalConsumers();
+            work.future.completeExceptionally(e);
+        }
+    }
+
+    private void requeue(Work work)
+    {
+        // volta a ser um envio na fila, a ser retirado por um consumidor
+        work.claimed = 0;
+
+        if(lanes[work.priority.ordinal()].queue.offer(work))
+        {
+            waiting.decrementAndGet();
+            signalConsumers();
+            return;
+        }
+
+        // fila cheia, tentar novamente em seguida sem bloquear o scheduler
+        try
+        {
+            sender.getScheduler().schedule(() -> requeue(work), 1, TimeUnit.MILLISECONDS);
+        }
+        catch(RejectedExecutionException e)
+        {
+            waiting.decrementAndGet();
+            signalConsumers();
+            work.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Um envio na fila.
+     */
+    private static final class Work
+    {
+        private static final AtomicIntegerFieldUpdater<Work> CLAIMED = AtomicIntegerFieldUpdater.newUpdater(Work.class, "claimed");
+
+        final Message message;
+        final PreparedMessage prepared;
+        final String registrationId;
+        final CollapseKey collapseKey;
+        final Message.Priority priority;
+        final long enqueued = System.nanoTime();
+        // instante a partir do qual o time to live é contado
+        final long submittedAt = System.currentTimeMillis();
+        final CompletableFuture<Result> future = new CompletableFuture<>();
+        // vaga do DeviceRateLimiter já reservada para o próximo envio
+        boolean reserved;
+        int deferrals;
+        // envio anterior com a mesma collapse key, para o mesmo dispositivo, até este sair da fila
+        Work supersedes;
+        // envio mais novo com a mesma collapse key, para o mesmo dispositivo, já retirado da fila
+        volatile Work supersededBy;
+        // se deixou de ser repetido por ter sido substituído
+        volatile boolean collapsed;
+        // 1 depois de retirado da fila por um consumidor, ou recusado ao produtor que encontrou o pipeline fechado
+        volatile int claimed;
+
+        Work(Message message, PreparedMessage prepared, String registrationId)
+        {
+            this.message = message;
+            this.prepared = prepared;
+            this.registrationId = registrationId;
+            this.collapseKey = message.getCollapseKey() == null ? null : new CollapseKey(registrationId, message.getCollapseKey());
+            this.priority = Constants.MESSAGE_PRIORITY_HIGH.equals(message.getPriority())
+                    ? Message.Priority.HIGH
+                    : Message.Priority.NORMAL;
+        }
+
+        /**
+         * Reserva o envio para quem o retirou da fila; apenas um consumidor, ou o produtor, consegue.
+         */
+        boolean claim()
+        {
+            return CLAIMED.compareAndSet(this, 0, 1);
+        }
+    }
+
+    /**
+     * Envios que podem ir no mesmo multicast: a mesma mensagem codificada e, se ela tem time to live, o mesmo segundo do submit.
+     */
+    private static final class GroupKey
+    {
+        final PreparedMessage message;
+        final long second;
+
+        GroupKey(PreparedMessage message, Work work)
+        {
+            Integer timeToLive = work.message.getTimeToLive();
+            this.message = message;
+            this.second = timeToLive == null || timeToLive == 0 ? 0 : work.submittedAt / 1000;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if(!(obj instanceof GroupKey))
+            {
+                return false;
+            }
+
+            GroupKey other = (GroupKey)obj;
+            return second == other.second && message.equals(other.message);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * message.hashCode() + Long.hashCode(second);
+        }
+    }
+
+    /**
+     * Par (registration id, collapse key).
+     */
+    private static final class CollapseKey
+    {
+        final String registrationId;
+        final String collapseKey;
+
+        CollapseKey(String registrationId, String collapseKey)
+        {
+            this.registrationId = registrationId;
+            this.collapseKey = collapseKey;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if(!(obj instanceof CollapseKey))
+            {
+                return false;
+            }
+
+            CollapseKey other = (CollapseKey)obj;
+            return registrationId.equals(other.registrationId) && collapseKey.equals(other.collapseKey);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * registrationId.hashCode() + collapseKey.hashCode();
+        }
+    }
+
+    /**
+     * Fila de uma prioridade e as suas métricas.
+     */
+    private static final class Lane
+    {
+        final RingBuffer<Work> queue;
+        final LongAdder dispatched = new LongAdder();
+        final LongAdder waitTime = new LongAdder();
+        final AtomicLong maxWaitTime = new AtomicLong();
+        // multicasts da fila sendo enviados ou aguardando o back-off
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        Lane(int capacity)
+        {
+            queue = new RingBuffer<>(capacity);
+        }
+
+        void recordWaitTime(List<Work> batch)
+        {
+            long now = System.nanoTime();
+
+            for(Work work : batch)
+            {
+                long wait = now - work.enqueued;
+                waitTime.add(wait);
+                maxWaitTime.accumulateAndGet(wait, Math::max);
+            }
+
+            dispatched.add(batch.size());
+        }
+    }
+}
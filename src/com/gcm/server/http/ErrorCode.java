@@ -0,0 +1,166 @@
+package com.gcm.server.http;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Códigos de erro retornados pelo GCM para cada registration id, classificados conforme a ação que o sender deve tomar.
+ * <p>
+ * O código é resolvido uma única vez, quando o response é lido, e está disponível em {@link Result#getErrorCode()}. Códigos que
+ * esta versão não conhece resultam em {@link #UNKNOWN}; o valor original continua em {@link Result#getErrorCodeName()}.
+ */
+public enum ErrorCode
+{
+    /**
+     * @see Constants#ERROR_QUOTA_EXCEEDED
+     */
+    QUOTA_EXCEEDED(Constants.ERROR_QUOTA_EXCEEDED, false, false, true, false),
+    /**
+     * @see Constants#ERROR_DEVICE_QUOTA_EXCEEDED
+     */
+    DEVICE_QUOTA_EXCEEDED(Constants.ERROR_DEVICE_QUOTA_EXCEEDED, false, false, true, false),
+    /**
+     * @see Constants#ERROR_MISSING_REGISTRATION
+     */
+    MISSING_REGISTRATION(Constants.ERROR_MISSING_REGISTRATION, false, true, false, false),
+    /**
+     * @see Constants#ERROR_INVALID_REGISTRATION
+     */
+    INVALID_REGISTRATION(Constants.ERROR_INVALID_REGISTRATION, false, true, false, false),
+    /**
+     * @see Constants#ERROR_MISMATCH_SENDER_ID
+     */
+    MISMATCH_SENDER_ID(Constants.ERROR_MISMATCH_SENDER_ID, false, true, false, false),
+    /**
+     * @see Constants#ERROR_NOT_REGISTERED
+     */
+    NOT_REGISTERED(Constants.ERROR_NOT_REGISTERED, false, true, false, false),
+    /**
+     * @see Constants#ERROR_MESSAGE_TOO_BIG
+     */
+    MESSAGE_TOO_BIG(Constants.ERROR_MESSAGE_TOO_BIG, false, false, false, true),
+    /**
+     * @see Constants#ERROR_MISSING_COLLAPSE_KEY
+     */
+    MISSING_COLLAPSE_KEY(Constants.ERROR_MISSING_COLLAPSE_KEY, false, false, false, true),
+    /**
+     * @see Constants#ERROR_UNAVAILABLE
+     */
+    UNAVAILABLE(Constants.ERROR_UNAVAILABLE, true, false, false, false),
+    /**
+     * @see Constants#ERROR_INTERNAL_SERVER_ERROR
+     */
+    INTERNAL_SERVER_ERROR(Constants.ERROR_INTERNAL_SERVER_ERROR, true, false, false, false),
+    /**
+     * @see Constants#ERROR_INVALID_TTL
+     */
+    INVALID_TTL(Constants.ERROR_INVALID_TTL, false, false, false, true),
+    /**
+     * @see Constants#ERROR_EXPIRED
+     */
+    EXPIRED(Constants.ERROR_EXPIRED, false, false, false, false),
+    /**
+     * @see Constants#ERROR_DEAD_TOKEN
+     */
+    DEAD_TOKEN(Constants.ERROR_DEAD_TOKEN, false, false, false, false),
+    /**
+     * Código não reconhecido por esta versão.
+     */
+    UNKNOWN(null, false, false, false, false);
+
+    private static final Map<String, ErrorCode> BY_NAME = new HashMap<>();
+
+    static
+    {
+        for(ErrorCode code : values())
+        {
+            if(code.name != null)
+            {
+                BY_NAME.put(code.name, code);
+            }
+        }
+    }
+
+    private final String name;
+    private final boolean retryable;
+    private final boolean tokenDead;
+    private final boolean quota;
+    private final boolean payloadError;
+
+    private ErrorCode(String name, boolean retryable, boolean tokenDead, boolean quota, boolean payloadError)
+    {
+        this.name = name;
+        this.retryable = retryable;
+        this.tokenDead = tokenDead;
+        this.quota = quota;
+        this.payloadError = payloadError;
+    }
+
+    /**
+     * Obtém o código correspondente ao valor retornado pelo GCM.
+     *
+     * @param name valor do campo {@code error}.
+     *
+     * @return código, {@link #UNKNOWN} se não reconhecido, ou {@literal null} se {@code name} é {@literal null}.
+     */
+    public static ErrorCode of(String name)
+    {
+        if(name == null)
+        {
+            return null;
+        }
+
+        ErrorCode code = BY_NAME.get(name);
+        return code != null ? code : UNKNOWN;
+    }
+
+    /**
+     * Obtém o valor do código no protocolo GCM.
+     *
+     * @return nome, ou {@literal null} para {@link #UNKNOWN}.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Indica se o GCM estava indisponível e a mensagem pode ser enviada novamente para o mesmo registration id.
+     *
+     * @return retryable
+     */
+    public boolean isRetryable()
+    {
+        return retryable;
+    }
+
+    /**
+     * Indica se o registration id não é mais válido e deve ser removido do armazenamento do servidor.
+     *
+     * @return tokenDead
+     */
+    public boolean isTokenDead()
+    {
+        return tokenDead;
+    }
+
+    /**
+     * Indica se o remetente ou o dispositivo excedeu a cota de mensagens.
+     *
+     * @return quota
+     */
+    public boolean isQuota()
+    {
+        return quota;
+    }
+
+    /**
+     * Indica se o erro está na mensagem, e não no registration id; reenviar a mesma mensagem teria o mesmo resultado.
+     *
+     * @return payloadError
+     */
+    public boolean isPayloadError()
+    {
+        return payloadError;
+    }
+}
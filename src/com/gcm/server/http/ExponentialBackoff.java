@@ -0,0 +1,43 @@
+package com.gcm.server.http;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Back-off exponencial com jitter: o intervalo base dobra a cada tentativa até o máximo, e o atraso é sorteado entre metade e uma vez
+ * e meia o intervalo base.
+ * <p>
+ * Esta é a política default do {@link Sender}.
+ */
+public final class ExponentialBackoff implements BackoffPolicy
+{
+    private final long initialDelay;
+    private final long maxDelay;
+
+    /**
+     * @param initialDelay intervalo base antes da primeira repetição, em milissegundos.
+     * @param maxDelay     limite do intervalo base, em milissegundos.
+     */
+    public ExponentialBackoff(long initialDelay, long maxDelay)
+    {
+        if(initialDelay < 1 || maxDelay < initialDelay)
+        {
+            throw new IllegalArgumentException("intervalos inválidos: " + initialDelay + ", " + maxDelay);
+        }
+
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    @Override
+    public long nextDelay(int retry, long previousDelay)
+    {
+        long backoff = initialDelay;
+
+        for(int i = 1; i < retry && 2 * backoff < maxDelay; i++)
+        {
+            backoff *= 2;
+        }
+
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff);
+    }
+}
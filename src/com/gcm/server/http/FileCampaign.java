@@ -0,0 +1,675 @@
+package com.gcm.server.http;
+
+import static com.gcm.server.http.Constants.MAX_MULTICAST_SIZE;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Envia uma mensagem para todos os registration ids de um arquivo, sem carregar a lista em memória.
+ * <p>
+ * O arquivo de entrada tem um registration id por linha (linhas vazias são ignoradas) e é lido por janelas mapeadas em memória,
+ * sem {@link java.io.Reader} nem buffers intermediários: as linhas são localizadas diretamente nas páginas do arquivo e cada id é
+ * copiado uma única vez, para a {@link String} enviada. Os ids são agrupados em multicasts de
+ * {@value Constants#MAX_MULTICAST_SIZE}, com no máximo {@code parallelism} multicasts em andamento; a leitura aguarda enquanto
+ * o limite está atingido. Assim a memória usada depende apenas do paralelismo, e não do tamanho do arquivo.
+ * <p>
+ * O resultado de cada registration id é gravado no arquivo de saída, uma linha por id com quatro colunas separadas por tab:
+ * registration id, message id, código de erro e canonical registration id (vazias quando não se aplicam). Os ids de um
+ * multicast ficam juntos e na ordem da entrada, mas os multicasts aparecem na ordem em que terminam. Um multicast que não pôde ser
+ * enviado depois de todas as tentativas tem o erro {@value Constants#ERROR_UNAVAILABLE} em todos os seus ids; um erro no request
+ * (status 4xx, por exemplo uma API key inválida) interrompe a campanha. Examplo:
+ * <pre><code>
+ * FileCampaign campaign = new FileCampaign.Builder(sender, Paths.get("tokens.txt"), Paths.get("outcomes.tsv"))
+ *    .parallelism(16)
+ *    .progressListener((progress) -&gt; LOGGER.info(progress.toString()))
+ *    .build();
+ *
+ * FileCampaign.Progress summary = campaign.run(message);
+ * </code></pre>
+ * <p>
+ * Cada instância executa uma única campanha. As instâncias dessa classe são thread-safe.
+ */
+public final class FileCampaign
+{
+    private static final Logger LOGGER = Logger.getLogger(FileCampaign.class.getName());
+
+    /**
+     * Número default de multicasts simultâneos.
+     */
+    public static final int DEFAULT_PARALLELISM = 8;
+
+    /**
+     * Número default de novas tentativas de cada multicast.
+     */
+    public static final int DEFAULT_RETRIES = 5;
+
+    /**
+     * Intervalo default entre dois relatórios de progresso, em milissegundos.
+     */
+    public static final long DEFAULT_PROGRESS_INTERVAL = 5000;
+
+    // tamanho de cada janela mapeada do arquivo de entrada
+    private static final int WINDOW = 1 << 28;
+
+    private final Sender sender;
+    private final Path input;
+    private final Path output;
+    private final int parallelism;
+    private final int retries;
+    private final ProgressListener progressListener;
+    private final long progressInterval;
+
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final Semaphore permits;
+    private volatile long startTime;
+    private volatile long totalBytes;
+    private volatile long bytesRead;
+    private final LongAdder read = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder success = new LongAdder();
+    private final LongAdder failure = new LongAdder();
+    private final LongAdder canonicalIds = new LongAdder();
+    // primeiro erro que interrompe a campanha
+    private volatile IOException error;
+
+    /**
+     * Recebe relatórios periódicos do progresso da campanha.
+     * <p>
+     * As chamadas são feitas no scheduler do sender e devem ser rápidas.
+     */
+    @FunctionalInterface
+    public interface ProgressListener
+    {
+        /**
+         * Progresso da campanha, chamado a cada intervalo e uma última vez quando a campanha termina.
+         *
+         * @param progress progresso até o momento.
+         */
+        void onProgress(Progress progress);
+    }
+
+    /**
+     * Progresso de uma campanha em um dado momento. As instâncias dessa classe são imutáveis.
+     */
+    public static final class Progress
+    {
+        private final long read;
+        private final long completed;
+        private final long success;
+        private final long failure;
+        private final long canonicalIds;
+        private final long bytesRead;
+        private final long totalBytes;
+        private final long elapsedTime;
+
+        Progress(long read, long completed, long success, long failure, long canonicalIds, long bytesRead, long totalBytes,
+                long elapsedTime)
+        {
+            this.read = read;
+            this.completed = completed;
+            this.success = success;
+            this.failure = failure;
+            this.canonicalIds = canonicalIds;
+            this.bytesRead = bytesRead;
+            this.totalBytes = totalBytes;
+            this.elapsedTime = elapsedTime;
+        }
+
+        /**
+         * Obtém o número de registration ids lidos do arquivo.
+         *
+         * @return read
+         */
+        public long getRead()
+        {
+            return read;
+        }
+
+        /**
+         * Obtém o número de registration ids com resultado gravado no arquivo de saída.
+         *
+         * @return completed
+         */
+        public long getCompleted()
+        {
+            return completed;
+        }
+
+        /**
+         * Obtém o número de mensagens aceitas pelo GCM.
+         *
+         * @return success
+         */
+        public long getSuccess()
+        {
+            return success;
+        }
+
+        /**
+         * Obtém o número de mensagens com erro.
+         *
+         * @return failure
+         */
+        public long getFailure()
+        {
+            return failure;
+        }
+
+        /**
+         * Obtém o número de resultados com canonical registration id.
+         *
+         * @return canonicalIds
+         */
+        public long getCanonicalIds()
+        {
+            return canonicalIds;
+        }
+
+        /**
+         * Obtém a fração do arquivo de entrada já lida, entre 0 e 1.
+         *
+         * @return fractionRead
+         */
+        public double getFractionRead()
+        {
+            return totalBytes == 0 ? 1 : (double)bytesRead / totalBytes;
+        }
+
+        /**
+         * Obtém o tempo desde o início da campanha, em milissegundos.
+         *
+         * @return elapsedTime
+         */
+        public long getElapsedTime()
+        {
+            return elapsedTime;
+        }
+
+        /**
+         * Obtém a vazão média da campanha.
+         *
+         * @return registration ids concluídos por segundo.
+         */
+        public double getThroughput()
+        {
+            return elapsedTime == 0 ? 0 : completed * 1000.0 / elapsedTime;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("Progress(read=%d, completed=%d, success=%d, failure=%d, canonicalIds=%d, %.1f%% lido, %.0f ids/s)",
+                    read, completed, success, failure, canonicalIds, getFractionRead() * 100, getThroughput());
+        }
+    }
+
+    public static final class Builder
+    {
+        // parâmetros necessários
+        private final Sender sender;
+        private final Path input;
+        private final Path output;
+
+        // parâmetros opcionais
+        private int parallelism = DEFAULT_PARALLELISM;
+        private int retries = DEFAULT_RETRIES;
+        private ProgressListener progressListener;
+        private long progressInterval = DEFAULT_PROGRESS_INTERVAL;
+
+        /**
+         * @param sender sender usado nos envios.
+         * @param input  arquivo com um registration id por linha.
+         * @param output arquivo em que os resultados são gravados, substituído se existir.
+         */
+        public Builder(Sender sender, Path input, Path output)
+        {
+            this.sender = Sender.nonNull(sender);
+            this.input = Sender.nonNull(input);
+            this.output = Sender.nonNull(output);
+        }
+
+        /**
+         * Define o número máximo de multicasts simultâneos (valor default é {@value FileCampaign#DEFAULT_PARALLELISM}).
+         */
+        public Builder parallelism(int value)
+        {
+            if(value < 1)
+            {
+                throw new IllegalArgumentException("parallelism deve ser maior que 0");
+            }
+            parallelism = value;
+            return this;
+        }
+
+        /**
+         * Define o número de novas tentativas de cada multicast em caso de indisponibilidade (valor default é
+         * {@value FileCampaign#DEFAULT_RETRIES}).
+         */
+        public Builder retries(int value)
+        {
+            if(value < 0)
+            {
+                throw new IllegalArgumentException("retries não pode ser negativo");
+            }
+            retries = value;
+            return this;
+        }
+
+        /**
+         * Define o receptor dos relatórios de progresso; por padrão não há relatórios.
+         */
+        public Builder progressListener(ProgressListener value)
+        {
+            progressListener = value;
+            return this;
+        }
+
+        /**
+         * Define o intervalo entre dois relatórios de progresso, em milissegundos (valor default é
+         * {@value FileCampaign#DEFAULT_PROGRESS_INTERVAL}).
+         */
+        public Builder progressInterval(long value)
+        {
+            if(value < 1)
+            {
+                throw new IllegalArgumentException("intervalo inválido: " + value);
+            }
+            progressInterval = value;
+            return this;
+        }
+
+        public FileCampaign build()
+        {
+            return new FileCampaign(this);
+        }
+    }
+
+    private FileCampaign(Builder builder)
+    {
+        sender = builder.sender;
+        input = builder.input;
+        output = builder.output;
+        parallelism = builder.parallelism;
+        retries = builder.retries;
+        progressListener = builder.progressListener;
+        progressInterval = builder.progressInterval;
+        permits = new Semaphore(parallelism);
+    }
+
+    /**
+     * Executa a campanha, bloqueando até todos os registration ids terem resultado.
+     *
+     * @param message mensagem a ser enviada.
+     *
+     * @return progresso final da campanha.
+     *
+     * @throws IllegalStateException   se a campanha já foi executada.
+     * @throws InvalidRequestException se GCM retornou um erro no request, o que interrompe a campanha.
+     * @throws IOException             se os arquivos não puderam ser lidos ou gravados.
+     */
+    public Progress run(Message message) throws IOException
+    {
+        return run(new PreparedMessage(message));
+    }
+
+    /**
+     * Executa a campanha com uma mensagem já serializada. Consulte {@link #run(Message)} para mais informações.
+     *
+     * @param message mensagem a ser enviada.
+     *
+     * @return progresso final da campanha.
+     *
+     * @throws IllegalStateException   se a campanha já foi executada.
+     * @throws InvalidRequestException se GCM retornou um erro no request, o que interrompe a campanha.
+     * @throws IOException             se os arquivos não puderam ser lidos ou gravados.
+     */
+    public Progress run(PreparedMessage message) throws IOException
+    {
+        Sender.nonNull(message);
+
+        if(!started.compareAndSet(false, true))
+        {
+            throw new IllegalStateException("campanha já executada");
+        }
+
+        startTime = System.nanoTime();
+        ScheduledFuture<?> reporter = null;
+
+        if(progressListener != null)
+        {
+            reporter = sender.getScheduler().scheduleAtFixedRate(() -> progressListener.onProgress(getProgress()),
+                    progressInterval, progressInterval, TimeUnit.MILLISECONDS);
+        }
+
+        try(FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.WRITE))
+        {
+            totalBytes = in.size();
+            TokenReader reader = new TokenReader(in);
+
+            try
+            {
+                List<String> chunk = new ArrayList<>(MAX_MULTICAST_SIZE);
+                String regId;
+
+                while(error == null && (regId = reader.next()) != null)
+                {
+                    chunk.add(regId);
+
+                    if(chunk.size() == MAX_MULTICAST_SIZE)
+                    {
+                        dispatch(message, chunk, out, reader.position());
+                        chunk = new ArrayList<>(MAX_MULTICAST_SIZE);
+                    }
+                }
+
+                if(!chunk.isEmpty() && error == null)
+                {
+                    dispatch(message, chunk, out, reader.position());
+                }
+
+                bytesRead = reader.position();
+            }
+            finally
+            {
+                // aguardar os multicasts em andamento antes de fechar o arquivo de saída
+                permits.acquireUninterruptibly(parallelism);
+                permits.release(parallelism);
+            }
+
+            out.force(false);
+        }
+        finally
+        {
+            if(reporter != null)
+            {
+                reporter.cancel(false);
+            }
+        }
+
+        if(error != null)
+        {
+            throw error;
+        }
+
+        Progress progress = getProgress();
+
+        if(progressListener != null)
+        {
+            progressListener.onProgress(progress);
+        }
+
+        return progress;
+    }
+
+    /**
+     * Obtém o progresso da campanha até o momento.
+     *
+     * @return progress
+     */
+    public Progress getProgress()
+    {
+        long elapsed = startTime == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        return new Progress(read.sum(), completed.sum(), success.sum(), failure.sum(), canonicalIds.sum(), bytesRead, totalBytes,
+                elapsed);
+    }
+
+    /**
+     * Envia um multicast, aguardando enquanto {@code parallelism} multicasts estão em andamento.
+     */
+    private void dispatch(PreparedMessage message, List<String> chunk, FileChannel out, long position) throws IOException
+    {
+        try
+        {
+            permits.acquire();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Campanha interrompida");
+        }
+
+        read.add(chunk.size());
+        bytesRead = position;
+
+        try
+        {
+            sender.sendAsync(message, chunk, retries).whenComplete((multicastResult, failed) ->
+            {
+                try
+                {
+                    complete(chunk, multicastResult, failed, out);
+                }
+                finally
+                {
+                    permits.release();
+                }
+            });
+        }
+        catch(RuntimeException e)
+        {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Grava os resultados de um multicast no arquivo de saída.
+     */
+    private void complete(List<String> chunk, MulticastResult multicastResult, Throwable failed, FileChannel out)
+    {
+        if(failed instanceof CompletionException && failed.getCause() != null)
+        {
+            failed = failed.getCause();
+        }
+
+        if(failed instanceof InvalidRequestException && ((InvalidRequestException)failed).getHttpStatusCode() < 500)
+        {
+            // o mesmo request falharia em todos os multicasts
+            fail((IOException)failed);
+            return;
+        }
+
+        if(failed != null)
+        {
+            LOGGER.log(Level.WARNING, "Multicast de " + chunk.size() + " registration ids não pôde ser enviado", failed);
+        }
+
+        StringBuilder lines = new StringBuilder(chunk.size() * 200);
+        int accepted = 0, canonical = 0;
+
+        for(int i = 0; i < chunk.size(); i++)
+        {
+            lines.append(chunk.get(i)).append('\t');
+
+            if(failed != null)
+            {
+                lines.append('\t').append(Constants.ERROR_UNAVAILABLE).append('\t');
+            }
+            else
+            {
+                Result result = multicastResult.getResults().get(i);
+                append(lines, result.getMessageId()).append('\t');
+                append(lines, result.getErrorCodeName()).append('\t');
+                append(lines, result.getCanonicalRegistrationId());
+
+                if(result.getMessageId() != null)
+                {
+                    accepted++;
+
+                    if(result.getCanonicalRegistrationId() != null)
+                    {
+                        canonical++;
+                    }
+                }
+            }
+
+            lines.append('\n');
+        }
+
+        ByteBuffer bytes = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+
+        try
+        {
+            synchronized(out)
+            {
+                while(bytes.hasRemaining())
+                {
+                    out.write(bytes);
+                }
+            }
+            // contadores atualizados juntos, depois de os resultados estarem no arquivo
+            success.add(accepted);
+            failure.add(chunk.size() - accepted);
+            canonicalIds.add(canonical);
+            completed.add(chunk.size());
+        }
+        catch(IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e)
+    {
+        synchronized(this)
+        {
+            if(error == null)
+            {
+                error = e;
+            }
+        }
+    }
+
+    private static StringBuilder append(StringBuilder builder, String value)
+    {
+        return value == null ? builder : builder.append(value);
+    }
+
+    /**
+     * Lê as linhas do arquivo de entrada por janelas mapeadas em memória.
+     * <p>
+     * <strong>Nota: </strong> instâncias não são thread-safe.
+     */
+    private static final class TokenReader
+    {
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer window;
+        // posição da janela no arquivo
+        private long base;
+        private byte[] line = new byte[256];
+
+        TokenReader(FileChannel channel) throws IOException
+        {
+            this.channel = channel;
+            this.size = channel.size();
+            map(0);
+        }
+
+        /**
+         * Obtém a posição no arquivo da próxima linha.
+         */
+        long position()
+        {
+            return base + window.position();
+        }
+
+        /**
+         * Lê a próxima linha não vazia, sem o terminador ({@code \n} ou {@code \r\n}) e sem espaços nas pontas.
+         *
+         * @return linha, ou {@literal null} no fim do arquivo.
+         */
+        String next() throws IOException
+        {
+            for(;;)
+            {
+                int start = window.position();
+                int limit = window.limit();
+                int end = start;
+
+                while(end < limit && window.get(end) != '\n')
+                {
+                    end++;
+                }
+
+                if(end == limit && base + limit < size)
+                {
+                    // a linha continua na próxima janela
+                    if(start == 0)
+                    {
+                        throw new IOException("Linha maior que " + WINDOW + " bytes na posição " + base);
+                    }
+                    map(base + start);
+                    continue;
+                }
+
+                if(start == end && end == limit)
+                {
+                    return null;
+                }
+
+                window.position(end < limit ? end + 1 : end);
+                String value = read(start, end);
+
+                if(!value.isEmpty())
+                {
+                    return value;
+                }
+            }
+        }
+
+        /**
+         * Copia a linha entre {@code start} e {@code end}, sem os espaços nas pontas.
+         */
+        private String read(int start, int end)
+        {
+            while(start < end && window.get(start) <= ' ')
+            {
+                start++;
+            }
+            while(end > start && window.get(end - 1) <= ' ')
+            {
+                end--;
+            }
+
+            int length = end - start;
+
+            if(length > line.length)
+            {
+                line = new byte[Math.max(length, line.length * 2)];
+            }
+
+            for(int i = 0; i < length; i++)
+            {
+                line[i] = window.get(start + i);
+            }
+
+            return new String(line, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private void map(long position) throws IOException
+        {
+            base = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+        }
+    }
+}
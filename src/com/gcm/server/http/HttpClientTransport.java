@@ -0,0 +1,88 @@
+package com.gcm.server.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Transporte HTTP baseado em {@link HttpClient}.
+ * <p>
+ * Usa HTTP/2 quando o endpoint oferece (vários requests multiplexados em poucas conexões) e volta para HTTP/1.1 com pool de
+ * conexões keep-alive caso contrário. Uma mesma instância deve ser compartilhada entre os {@link Sender}, pois o pool de conexões
+ * pertence ao {@link HttpClient}. Examplo:
+ * <pre><code>
+ * HttpClientTransport transport = new HttpClientTransport();
+ * Sender sender = new Sender(key);
+ * sender.setTransport(transport);
+ * </code></pre>
+ * <p>
+ * As instâncias dessa classe são thread-safe.
+ */
+public final class HttpClientTransport implements Transport
+{
+    private static final Logger LOGGER = Logger.getLogger(HttpClientTransport.class.getName());
+
+    /**
+     * Tempo máximo default para estabelecer uma conexão, em milissegundos.
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+    private final HttpClient client;
+
+    /**
+     * Cria um transporte com um {@link HttpClient} próprio, preferindo HTTP/2.
+     */
+    public HttpClientTransport()
+    {
+        this(HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(DEFAULT_CONNECT_TIMEOUT))
+                .build());
+    }
+
+    /**
+     * Cria um transporte usando o {@link HttpClient} informado, por exemplo com executor, proxy ou SSL próprios.
+     *
+     * @param client cliente HTTP.
+     */
+    public HttpClientTransport(HttpClient client)
+    {
+        this.client = Sender.nonNull(client);
+    }
+
+    @Override
+    public Response post(String url, String contentType, String authorization, byte[] body, int length) throws IOException
+    {
+        LOGGER.log(Level.FINE, "Enviando POST to {0}", url);
+
+        // o buffer do chamador pode ser reutilizado assim que este método retorna, e o HttpClient pode publicar o corpo depois disso
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .header("Content-Type", contentType)
+                .header("Authorization", authorization)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(Arrays.copyOf(body, length)))
+                .build();
+
+        try
+        {
+            HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            LOGGER.log(Level.FINEST, "Response {0} via {1}", new Object[]
+            {
+                response.statusCode(), response.version()
+            });
+            return new Response(response.statusCode(), response.body(), response.headers().map());
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("POST interrompido");
+        }
+    }
+}
@@ -11,6 +11,7 @@ public final class InvalidRequestException extends IOException
 {
     private final int status;
     private final String description;
+    private final Long retryAfter;
 
     public InvalidRequestException(int status)
     {
@@ -18,10 +19,16 @@ public final class InvalidRequestException extends IOException
     }
 
     public InvalidRequestException(int status, String description)
+    {
+        this(status, description, null);
+    }
+
+    public InvalidRequestException(int status, String description, Long retryAfter)
     {
         super(getMessage(status, description));
         this.status = status;
         this.description = description;
+        this.retryAfter = retryAfter;
     }
 
     private static String getMessage(int status, String description)
@@ -55,4 +62,14 @@ public final class InvalidRequestException extends IOException
     {
         return description;
     }
+
+    /**
+     * Obtém o tempo que o GCM pediu para aguardar antes de uma nova tentativa (header Retry-After), em milissegundos.
+     *
+     * @return retryAfter, ou {@literal null} se o response não informou.
+     */
+    public Long getRetryAfter()
+    {
+        return retryAfter;
+    }
 }
@@ -0,0 +1,473 @@
+package com.gcm.server.http;
+
+import static com.gcm.server.http.Constants.JSON_NOTIFICATION;
+import static com.gcm.server.http.Constants.JSON_NOTIFICATION_BADGE;
+import static com.gcm.server.http.Constants.JSON_NOTIFICATION_BODY;
+import static com.gcm.server.http.Constants.JSON_NOTIFICATION_BODY_LOC_ARGS;
+import static com.gcm.server.http.Constants.JSON_NOTIFICATION_BODY_LOC_KEY;
+import static com.gcm.server.http.Constants.JSON_NOTIFICATION_CLICK_ACTION;
+import static com.gcm.server.http.Constants.JSON_NOTIFICATION_COLOR;
+import static com.gcm.server.http.Constants.JSON_NOTIFICATION_ICON;
+import static com.gcm.server.http.Constants.JSON_NOTIFICATION_SOUND;
+import static com.gcm.server.http.Constants.JSON_NOTIFICATION_TAG;
+import static com.gcm.server.http.Constants.JSON_NOTIFICATION_TITLE;
+import static com.gcm.server.http.Constants.JSON_NOTIFICATION_TITLE_LOC_ARGS;
+import static com.gcm.server.http.Constants.JSON_NOTIFICATION_TITLE_LOC_KEY;
+import static com.gcm.server.http.Constants.JSON_PAYLOAD;
+import static com.gcm.server.http.Constants.JSON_REGISTRATION_IDS;
+import static com.gcm.server.http.Constants.PARAM_COLLAPSE_KEY;
+import static com.gcm.server.http.Constants.PARAM_DELAY_WHILE_IDLE;
+import static com.gcm.server.http.Constants.PARAM_DRY_RUN;
+import static com.gcm.server.http.Constants.PARAM_PRIORITY;
+import static com.gcm.server.http.Constants.PARAM_RESTRICTED_PACKAGE_NAME;
+import static com.gcm.server.http.Constants.PARAM_TIME_TO_LIVE;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializa o corpo JSON de um request multicast diretamente para um buffer UTF-8 reutilizável.
+ * <p>
+ * O resultado é equivalente ao produzido por {@code JSONValue.toJSONString} (mesmas regras de escape), mas sem
+ * os {@link Map} intermediários nem a cópia {@link String} &rarr; {@code byte[]}. O campo
+ * {@literal registration_ids} é sempre escrito por último.
+ * <p>
+ * <strong>Nota: </strong> instâncias não são thread-safe.
+ */
+final class JsonRequestWriter
+{
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private final int initialCapacity;
+    private byte[] buffer;
+    private int length;
+    private boolean firstField;
+    // posição do valor de time_to_live no último cabeçalho escrito, -1 se ausente
+    private int timeToLiveStart = -1;
+    private int timeToLiveEnd = -1;
+
+    JsonRequestWriter(int capacity)
+    {
+        initialCapacity = capacity;
+        buffer = new byte[capacity];
+    }
+
+    /**
+     * Volta à capacidade inicial se o buffer cresceu além do limite, para que um request excepcionalmente grande não fique retido
+     * enquanto a instância existir. O conteúdo atual é descartado.
+     *
+     * @param maxCapacity maior buffer mantido entre dois requests.
+     */
+    void trim(int maxCapacity)
+    {
+        if(buffer.length > maxCapacity)
+        {
+            buffer = new byte[initialCapacity];
+        }
+        reset();
+    }
+
+    /**
+     * Descarta o conteúdo atual, mantendo o buffer alocado.
+     *
+     * @return esta instância.
+     */
+    JsonRequestWriter reset()
+    {
+        length = 0;
+        firstField = true;
+        timeToLiveStart = -1;
+        timeToLiveEnd = -1;
+        return this;
+    }
+
+    /**
+     * Obtém o buffer interno; apenas os primeiros {@link #length()} bytes são válidos.
+     *
+     * @return buffer
+     */
+    byte[] buffer()
+    {
+        return buffer;
+    }
+
+    /**
+     * Obtém a posição inicial do valor do campo {@literal time_to_live} no último fragmento escrito.
+     *
+     * @return timeToLiveStart, ou -1 se a mensagem não tem time to live.
+     */
+    int timeToLiveStart()
+    {
+        return timeToLiveStart;
+    }
+
+    /**
+     * Obtém a posição seguinte ao fim do valor do campo {@literal time_to_live} no último fragmento escrito.
+     *
+     * @return timeToLiveEnd, ou -1 se a mensagem não tem time to live.
+     */
+    int timeToLiveEnd()
+    {
+        return timeToLiveEnd;
+    }
+
+    /**
+     * Obtém o número de bytes escritos.
+     *
+     * @return length
+     */
+    int length()
+    {
+        return length;
+    }
+
+    /**
+     * Escreve o request completo para os dispositivos informados.
+     *
+     * @param message         mensagem a ser enviada.
+     * @param registrationIds registration id dos dispositivos que receberão a mensagem.
+     *
+     * @return esta instância.
+     */
+    JsonRequestWriter writeRequest(Message message, List<String> registrationIds)
+    {
+        writeHead(message);
+        writeStringArray(registrationIds);
+        writeRaw('}');
+        return this;
+    }
+
+    /**
+     * Escreve o request completo a partir de uma mensagem já serializada, copiando o fragmento pronto e codificando
+     * apenas os registration ids.
+     *
+     * @param message         mensagem já serializada.
+     * @param registrationIds registration id dos dispositivos que receberão a mensagem.
+     *
+     * @return esta instância.
+     */
+    JsonRequestWriter writeRequest(PreparedMessage message, List<String> registrationIds)
+    {
+        reset();
+        byte[] prefix = message.prefix();
+        ensureCapacity(prefix.length);
+        System.arraycopy(prefix, 0, buffer, 0, prefix.length);
+        length = prefix.length;
+        writeStringArray(registrationIds);
+        writeRaw('}');
+        return this;
+    }
+
+    /**
+     * Escreve o request completo a partir de uma mensagem já serializada, substituindo o valor do campo {@literal time_to_live}
+     * sem serializar novamente os demais campos.
+     *
+     * @param message         mensagem já serializada.
+     * @param registrationIds registration id dos dispositivos que receberão a mensagem.
+     * @param timeToLive      time to live a ser enviado, em segundos; ignorado se a mensagem não tem time to live.
+     *
+     * @return esta instância.
+     */
+    JsonRequestWriter writeRequest(PreparedMessage message, List<String> registrationIds, int timeToLive)
+    {
+        int start = message.timeToLiveStart();
+
+        if(start < 0)
+        {
+            return writeRequest(message, registrationIds);
+        }
+
+        reset();
+        byte[] prefix = message.prefix();
+        int end = message.timeToLiveEnd();
+        ensureCapacity(prefix.length);
+        System.arraycopy(prefix, 0, buffer, 0, start);
+        length = start;
+        writeAscii(Integer.toString(timeToLive));
+        ensureCapacity(prefix.length - end);
+        System.arraycopy(prefix, end, buffer, length, prefix.length - end);
+        length += prefix.length - end;
+        writeStringArray(registrationIds);
+        writeRaw('}');
+        return this;
+    }
+
+    /**
+     * Serializa os campos da mensagem, até o início do array {@literal registration_ids}.
+     *
+     * @param message mensagem a ser serializada.
+     *
+     * @return cópia do fragmento gerado.
+     *
+     * @see PreparedMessage
+     */
+    byte[] writePrefix(Message message)
+    {
+        writeHead(message);
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private void writeHead(Message message)
+    {
+        reset();
+        writeRaw('{');
+        writeMessageFields(message);
+        writeField(JSON_REGISTRATION_IDS);
+    }
+
+    private void writeMessageFields(Message message)
+    {
+        writeField(PARAM_PRIORITY, message.getPriority());
+
+        if(message.getTimeToLive() != null)
+        {
+            // a posição permite substituir o valor a cada nova tentativa, veja writeRequest(PreparedMessage, List, int)
+            writeField(PARAM_TIME_TO_LIVE);
+            timeToLiveStart = length;
+            writeAscii(message.getTimeToLive().toString());
+            timeToLiveEnd = length;
+        }
+
+        writeField(PARAM_COLLAPSE_KEY, message.getCollapseKey());
+        writeField(PARAM_RESTRICTED_PACKAGE_NAME, message.getRestrictedPackageName());
+        writeField(PARAM_DELAY_WHILE_IDLE, message.isDelayWhileIdle());
+        writeField(PARAM_DRY_RUN, message.isDryRun());
+        Map<String, String> payload = message.getData();
+
+        if(!payload.isEmpty())
+        {
+            writeField(JSON_PAYLOAD);
+            writeRaw('{');
+            boolean first = true;
+
+            for(Map.Entry<String, String> entry : payload.entrySet())
+            {
+                if(!first)
+                {
+                    writeRaw(',');
+                }
+                first = false;
+                writeString(entry.getKey());
+                writeRaw(':');
+                writeString(entry.getValue());
+            }
+            writeRaw('}');
+        }
+
+        Notification notification = message.getNotification();
+
+        if(notification != null)
+        {
+            writeField(JSON_NOTIFICATION);
+            writeRaw('{');
+            firstField = true;
+
+            if(notification.getBadge() != null)
+            {
+                writeField(JSON_NOTIFICATION_BADGE, notification.getBadge().toString());
+            }
+            writeField(JSON_NOTIFICATION_BODY, notification.getBody());
+            writeField(JSON_NOTIFICATION_BODY_LOC_ARGS, notification.getBodyLocArgs());
+            writeField(JSON_NOTIFICATION_BODY_LOC_KEY, notification.getBodyLocKey());
+            writeField(JSON_NOTIFICATION_CLICK_ACTION, notification.getClickAction());
+            writeField(JSON_NOTIFICATION_COLOR, notification.getColor());
+            writeField(JSON_NOTIFICATION_ICON, notification.getIcon());
+            writeField(JSON_NOTIFICATION_SOUND, notification.getSound());
+            writeField(JSON_NOTIFICATION_TAG, notification.getTag());
+            writeField(JSON_NOTIFICATION_TITLE, notification.getTitle());
+            writeField(JSON_NOTIFICATION_TITLE_LOC_ARGS, notification.getTitleLocArgs());
+            writeField(JSON_NOTIFICATION_TITLE_LOC_KEY, notification.getTitleLocKey());
+            writeRaw('}');
+            firstField = false;
+        }
+    }
+
+    /**
+     * Escreve o nome de um campo, precedido de vírgula se necessário.
+     */
+    private void writeField(String name)
+    {
+        if(!firstField)
+        {
+            writeRaw(',');
+        }
+        firstField = false;
+        writeString(name);
+        writeRaw(':');
+    }
+
+    /**
+     * Escreve um campo JSON, mas apenas se o valor não for {@literal null}.
+     */
+    private void writeField(String name, String value)
+    {
+        if(value != null)
+        {
+            writeField(name);
+            writeString(value);
+        }
+    }
+
+    private void writeField(String name, Boolean value)
+    {
+        if(value != null)
+        {
+            writeField(name);
+            writeAscii(value ? "true" : "false");
+        }
+    }
+
+    private void writeField(String name, List<String> value)
+    {
+        if(value != null)
+        {
+            writeField(name);
+            writeStringArray(value);
+        }
+    }
+
+    private void writeStringArray(List<String> values)
+    {
+        writeRaw('[');
+        boolean first = true;
+
+        for(String value : values)
+        {
+            if(!first)
+            {
+                writeRaw(',');
+            }
+            first = false;
+            writeString(value);
+        }
+        writeRaw(']');
+    }
+
+    /**
+     * Escreve uma string JSON codificada em UTF-8, com as mesmas regras de escape de {@code JSONValue.escape}.
+     */
+    private void writeString(String value)
+    {
+        if(value == null)
+        {
+            writeAscii("null");
+            return;
+        }
+
+        // pior caso: 6 bytes por char (\\uXXXX) mais as aspas
+        ensureCapacity(value.length() * 6 + 2);
+        byte[] buf = buffer;
+        int pos = length;
+        buf[pos++] = '"';
+
+        for(int i = 0, size = value.length(); i < size; i++)
+        {
+            char ch = value.charAt(i);
+
+            switch(ch)
+            {
+                case '"':
+                    buf[pos++] = '\\';
+                    buf[pos++] = '"';
+                    break;
+                case '\\':
+                    buf[pos++] = '\\';
+                    buf[pos++] = '\\';
+                    break;
+                case '\b':
+                    buf[pos++] = '\\';
+                    buf[pos++] = 'b';
+                    break;
+                case '\f':
+                    buf[pos++] = '\\';
+                    buf[pos++] = 'f';
+                    break;
+                case '\n':
+                    buf[pos++] = '\\';
+                    buf[pos++] = 'n';
+                    break;
+                case '\r':
+                    buf[pos++] = '\\';
+                    buf[pos++] = 'r';
+                    break;
+                case '\t':
+                    buf[pos++] = '\\';
+                    buf[pos++] = 't';
+                    break;
+                case '/':
+                    buf[pos++] = '\\';
+                    buf[pos++] = '/';
+                    break;
+                default:
+                    if(ch <= '\u001F' || (ch >= '\u007F' && ch <= '\u009F') || (ch >= '\u2000' && ch <= '\u20FF'))
+                    {
+                        buf[pos++] = '\\';
+                        buf[pos++] = 'u';
+                        buf[pos++] = HEX[(ch >> 12) & 0xF];
+                        buf[pos++] = HEX[(ch >> 8) & 0xF];
+                        buf[pos++] = HEX[(ch >> 4) & 0xF];
+                        buf[pos++] = HEX[ch & 0xF];
+                    }
+                    else if(ch < 0x80)
+                    {
+                        buf[pos++] = (byte)ch;
+                    }
+                    else if(ch < 0x800)
+                    {
+                        buf[pos++] = (byte)(0xC0 | (ch >> 6));
+                        buf[pos++] = (byte)(0x80 | (ch & 0x3F));
+                    }
+                    else if(Character.isHighSurrogate(ch) && i + 1 < size && Character.isLowSurrogate(value.charAt(i + 1)))
+                    {
+                        int codePoint = Character.toCodePoint(ch, value.charAt(++i));
+                        buf[pos++] = (byte)(0xF0 | (codePoint >> 18));
+                        buf[pos++] = (byte)(0x80 | ((codePoint >> 12) & 0x3F));
+                        buf[pos++] = (byte)(0x80 | ((codePoint >> 6) & 0x3F));
+                        buf[pos++] = (byte)(0x80 | (codePoint & 0x3F));
+                    }
+                    else if(Character.isSurrogate(ch))
+                    {
+                        // surrogate isolado, mesmo comportamento de String.getBytes(UTF-8)
+                        buf[pos++] = '?';
+                    }
+                    else
+                    {
+                        buf[pos++] = (byte)(0xE0 | (ch >> 12));
+                        buf[pos++] = (byte)(0x80 | ((ch >> 6) & 0x3F));
+                        buf[pos++] = (byte)(0x80 | (ch & 0x3F));
+                    }
+            }
+        }
+
+        buf[pos++] = '"';
+        length = pos;
+    }
+
+    private void writeAscii(String value)
+    {
+        int size = value.length();
+        ensureCapacity(size);
+
+        for(int i = 0; i < size; i++)
+        {
+            buffer[length++] = (byte)value.charAt(i);
+        }
+    }
+
+    private void writeRaw(char ch)
+    {
+        ensureCapacity(1);
+        buffer[length++] = (byte)ch;
+    }
+
+    private void ensureCapacity(int extra)
+    {
+        int required = length + extra;
+
+        if(required > buffer.length)
+        {
+            buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+        }
+    }
+}
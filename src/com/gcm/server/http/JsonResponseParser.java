@@ -0,0 +1,654 @@
+package com.gcm.server.http;
+
+import static com.gcm.server.http.Constants.JSON_CANONICAL_IDS;
+import static com.gcm.server.http.Constants.JSON_ERROR;
+import static com.gcm.server.http.Constants.JSON_FAILURE;
+import static com.gcm.server.http.Constants.JSON_MESSAGE_ID;
+import static com.gcm.server.http.Constants.JSON_MULTICAST_ID;
+import static com.gcm.server.http.Constants.JSON_RESULTS;
+import static com.gcm.server.http.Constants.JSON_SUCCESS;
+import static com.gcm.server.http.Constants.TOKEN_CANONICAL_REG_ID;
+import com.gcm.server.http.Sender.CustomParserException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pull parser da resposta JSON de um request multicast.
+ * <p>
+ * Lê diretamente os bytes UTF-8 do {@link InputStream} e preenche um {@link MulticastResult.Builder} à medida que encontra os
+ * campos {@literal success}, {@literal failure}, {@literal canonical_ids}, {@literal multicast_id} e {@literal results}, sem
+ * construir a {@link String} da resposta nem a árvore de {@code JSONObject}.
+ * <p>
+ * Campos faltando ou que não contém um número resultam em {@link CustomParserException}, assim como JSON mal formado. Erros de
+ * leitura do stream são propagados como {@link IOException}.
+ * <p>
+ * <strong>Nota: </strong> instâncias não são thread-safe e devem ser usadas para uma única resposta.
+ */
+final class JsonResponseParser
+{
+    private static final String[] COUNT_FIELDS =
+    {
+        JSON_SUCCESS, JSON_FAILURE, JSON_CANONICAL_IDS, JSON_MULTICAST_ID
+    };
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[8192];
+    private final StringBuilder text = new StringBuilder(64);
+    private int position;
+    private int limit;
+    private long offset;
+
+    // estado dos campos numéricos, na mesma ordem de COUNT_FIELDS
+    private final long[] counts = new long[COUNT_FIELDS.length];
+    private final boolean[] present = new boolean[COUNT_FIELDS.length];
+    private final String[] invalid = new String[COUNT_FIELDS.length];
+
+    JsonResponseParser(InputStream in)
+    {
+        this.in = in;
+    }
+
+    /**
+     * Lê a resposta completa.
+     *
+     * @return builder com o resultado do request multicast, para que o chamador complete os dados vindos dos headers.
+     *
+     * @throws IOException           se houve um erro de leitura do stream.
+     * @throws CustomParserException se a resposta não é um JSON válido ou algum campo obrigatório está faltando.
+     */
+    MulticastResult.Builder parseMulticastResult() throws IOException
+    {
+        MulticastResult.Builder builder = null;
+        List<Result> pending = null;
+
+        expect('{');
+
+        if(peek() == '}')
+        {
+            read();
+        }
+        else
+        {
+            do
+            {
+                expect('"');
+                String field = readString();
+                expect(':');
+                int count = indexOfCount(field);
+
+                if(count >= 0)
+                {
+                    readCount(count);
+                }
+                else if(JSON_RESULTS.equals(field))
+                {
+                    if(peek() == 'n')
+                    {
+                        readLiteral();
+                        continue;
+                    }
+
+                    // GCM envia os contadores antes de results, caso contrário guardamos os resultados até o final
+                    if(builder == null && isValid())
+                    {
+                        builder = newBuilder();
+                    }
+                    else if(builder == null && pending == null)
+                    {
+                        pending = new ArrayList<>();
+                    }
+                    expect('[');
+
+                    if(peek() == ']')
+                    {
+                        read();
+                        continue;
+                    }
+
+                    do
+                    {
+                        Result result = readResult();
+
+                        if(builder != null)
+                        {
+                            builder.addResult(result);
+                        }
+                        else
+                        {
+                            pending.add(result);
+                        }
+                    }
+                    while(nextElement(']'));
+                }
+                else
+                {
+                    skipValue();
+                }
+            }
+            while(nextElement('}'));
+        }
+
+        if(peek() != -1)
+        {
+            throw syntaxError("fim da resposta esperado");
+        }
+
+        validate();
+
+        if(builder == null)
+        {
+            builder = newBuilder();
+        }
+
+        if(pending != null)
+        {
+            for(Result result : pending)
+            {
+                builder.addResult(result);
+            }
+        }
+
+        return builder;
+    }
+
+    private MulticastResult.Builder newBuilder()
+    {
+        return new MulticastResult.Builder((int)counts[0], (int)counts[1], (int)counts[2], counts[3]);
+    }
+
+    private static int indexOfCount(String field)
+    {
+        for(int i = 0; i < COUNT_FIELDS.length; i++)
+        {
+            if(COUNT_FIELDS[i].equals(field))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isValid()
+    {
+        for(int i = 0; i < COUNT_FIELDS.length; i++)
+        {
+            if(!present[i] || invalid[i] != null)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Mesmas verificações e mensagens de erro, na mesma ordem, que a leitura feita anteriormente com {@code JSONParser}.
+     */
+    private void validate()
+    {
+        for(int i = 0; i < COUNT_FIELDS.length; i++)
+        {
+            if(!present[i])
+            {
+                throw new CustomParserException("Campo faltando: " + COUNT_FIELDS[i]);
+            }
+
+            if(invalid[i] != null)
+            {
+                throw new CustomParserException("Campo " + COUNT_FIELDS[i] + " não contém um número: " + invalid[i]);
+            }
+        }
+    }
+
+    private void readCount(int index) throws IOException
+    {
+        int ch = peek();
+
+        if(ch == '-' || (ch >= '0' && ch <= '9'))
+        {
+            counts[index] = readNumber();
+            present[index] = true;
+            invalid[index] = null;
+        }
+        else if(ch == 'n')
+        {
+            // null equivale a um campo faltando
+            readLiteral();
+            present[index] = false;
+        }
+        else
+        {
+            invalid[index] = readValueAsText();
+            present[index] = true;
+        }
+    }
+
+    private Result readResult() throws IOException
+    {
+        String messageId = null;
+        String canonicalRegId = null;
+        String error = null;
+
+        expect('{');
+
+        if(peek() == '}')
+        {
+            read();
+            return new Result.Builder().build();
+        }
+
+        do
+        {
+            expect('"');
+            String field = readString();
+            expect(':');
+
+            if(JSON_MESSAGE_ID.equals(field))
+            {
+                messageId = readOptionalString();
+            }
+            else if(TOKEN_CANONICAL_REG_ID.equals(field))
+            {
+                canonicalRegId = readOptionalString();
+            }
+            else if(JSON_ERROR.equals(field))
+            {
+                error = readOptionalString();
+            }
+            else
+            {
+                skipValue();
+            }
+        }
+        while(nextElement('}'));
+
+        return new Result.Builder()
+                .messageId(messageId)
+                .canonicalRegistrationId(canonicalRegId)
+                .errorCode(error)
+                .build();
+    }
+
+    private String readOptionalString() throws IOException
+    {
+        if(peek() == '"')
+        {
+            read();
+            return readString();
+        }
+
+        skipValue();
+        return null;
+    }
+
+    /**
+     * Consome o separador após um elemento.
+     *
+     * @return {@literal true} se há mais elementos, {@literal false} se encontrou o fechamento.
+     */
+    private boolean nextElement(char close) throws IOException
+    {
+        int ch = skipWhitespace();
+
+        if(ch == ',')
+        {
+            return true;
+        }
+        if(ch == close)
+        {
+            return false;
+        }
+        throw syntaxError("',' ou '" + close + "' esperado");
+    }
+
+    private void skipValue() throws IOException
+    {
+        int ch = peek();
+
+        switch(ch)
+        {
+            case '{':
+                read();
+
+                if(peek() == '}')
+                {
+                    read();
+                    return;
+                }
+
+                do
+                {
+                    expect('"');
+                    skipString();
+                    expect(':');
+                    skipValue();
+                }
+                while(nextElement('}'));
+                return;
+            case '[':
+                read();
+
+                if(peek() == ']')
+                {
+                    read();
+                    return;
+                }
+
+                do
+                {
+                    skipValue();
+                }
+                while(nextElement(']'));
+                return;
+            case '"':
+                read();
+                skipString();
+                return;
+            default:
+                readValueAsText();
+        }
+    }
+
+    /**
+     * Lê um valor escalar (ou descarta um objeto/array) retornando uma representação textual, usada em mensagens de erro.
+     */
+    private String readValueAsText() throws IOException
+    {
+        int ch = peek();
+
+        if(ch == '"')
+        {
+            read();
+            return readString();
+        }
+        if(ch == '{' || ch == '[')
+        {
+            skipValue();
+            return ch == '{' ? "{...}" : "[...]";
+        }
+        if(ch == '-' || (ch >= '0' && ch <= '9'))
+        {
+            readNumberText();
+            return text.toString();
+        }
+        return readLiteral();
+    }
+
+    private String readLiteral() throws IOException
+    {
+        text.setLength(0);
+        int ch = peek();
+
+        while(ch >= 'a' && ch <= 'z')
+        {
+            text.append((char)read());
+            ch = peek();
+        }
+
+        String literal = text.toString();
+
+        if(!literal.equals("null") && !literal.equals("true") && !literal.equals("false"))
+        {
+            throw syntaxError("valor inesperado");
+        }
+        return literal;
+    }
+
+    private void readNumberText() throws IOException
+    {
+        text.setLength(0);
+        int ch = peek();
+
+        while((ch >= '0' && ch <= '9') || ch == '-' || ch == '+' || ch == '.' || ch == 'e' || ch == 'E')
+        {
+            text.append((char)read());
+            ch = peek();
+        }
+    }
+
+    /**
+     * Lê um número, convertendo inteiros como {@code Long} e decimais como {@code Double}, como faz {@code JSONParser}.
+     */
+    private long readNumber() throws IOException
+    {
+        readNumberText();
+        String number = text.toString();
+
+        try
+        {
+            for(int i = 0; i < number.length(); i++)
+            {
+                char ch = number.charAt(i);
+
+                if(ch == '.' || ch == 'e' || ch == 'E')
+                {
+                    return (long)Double.parseDouble(number);
+                }
+            }
+            return Long.parseLong(number);
+        }
+        catch(NumberFormatException e)
+        {
+            throw syntaxError("número inválido " + number);
+        }
+    }
+
+    /**
+     * Lê uma string JSON cujas aspas iniciais já foram consumidas, decodificando UTF-8 e escapes.
+     */
+    private String readString() throws IOException
+    {
+        text.setLength(0);
+
+        for(;;)
+        {
+            int b = read();
+
+            if(b == '"')
+            {
+                return text.toString();
+            }
+            if(b == '\\')
+            {
+                readEscape();
+            }
+            else if(b < 0)
+            {
+                throw syntaxError("string não terminada");
+            }
+            else if(b < 0x80)
+            {
+                text.append((char)b);
+            }
+            else
+            {
+                readMultiByte(b);
+            }
+        }
+    }
+
+    private void skipString() throws IOException
+    {
+        for(;;)
+        {
+            int b = read();
+
+            if(b == '"')
+            {
+                return;
+            }
+            if(b == '\\')
+            {
+                read();
+            }
+            else if(b < 0)
+            {
+                throw syntaxError("string não terminada");
+            }
+        }
+    }
+
+    private void readEscape() throws IOException
+    {
+        int ch = read();
+
+        switch(ch)
+        {
+            case '"':
+            case '\\':
+            case '/':
+                text.append((char)ch);
+                break;
+            case 'b':
+                text.append('\b');
+                break;
+            case 'f':
+                text.append('\f');
+                break;
+            case 'n':
+                text.append('\n');
+                break;
+            case 'r':
+                text.append('\r');
+                break;
+            case 't':
+                text.append('\t');
+                break;
+            case 'u':
+                int value = 0;
+
+                for(int i = 0; i < 4; i++)
+                {
+                    int digit = Character.digit(read(), 16);
+
+                    if(digit < 0)
+                    {
+                        throw syntaxError("escape unicode inválido");
+                    }
+                    value = (value << 4) | digit;
+                }
+                text.append((char)value);
+                break;
+            default:
+                throw syntaxError("escape inválido");
+        }
+    }
+
+    private void readMultiByte(int lead) throws IOException
+    {
+        int extra;
+        int codePoint;
+
+        if((lead & 0xE0) == 0xC0)
+        {
+            extra = 1;
+            codePoint = lead & 0x1F;
+        }
+        else if((lead & 0xF0) == 0xE0)
+        {
+            extra = 2;
+            codePoint = lead & 0x0F;
+        }
+        else if((lead & 0xF8) == 0xF0)
+        {
+            extra = 3;
+            codePoint = lead & 0x07;
+        }
+        else
+        {
+            text.append('\uFFFD');
+            return;
+        }
+
+        for(int i = 0; i < extra; i++)
+        {
+            // leitura sem pular espaços: um espaço depois de uma sequência truncada é parte da string
+            int b = read();
+
+            if((b & 0xC0) != 0x80)
+            {
+                if(b >= 0)
+                {
+                    position--;
+                }
+                text.append('\uFFFD');
+                return;
+            }
+            codePoint = (codePoint << 6) | (b & 0x3F);
+        }
+
+        if(Character.isValidCodePoint(codePoint))
+        {
+            text.appendCodePoint(codePoint);
+        }
+        else
+        {
+            text.append('\uFFFD');
+        }
+    }
+
+    private void expect(char expected) throws IOException
+    {
+        if(skipWhitespace() != expected)
+        {
+            throw syntaxError("'" + expected + "' esperado");
+        }
+    }
+
+    private int skipWhitespace() throws IOException
+    {
+        int ch;
+
+        do
+        {
+            ch = read();
+        }
+        while(ch == ' ' || ch == '\n' || ch == '\r' || ch == '\t');
+
+        return ch;
+    }
+
+    /**
+     * Obtém o próximo caractere significativo sem consumi-lo.
+     */
+    private int peek() throws IOException
+    {
+        int ch = skipWhitespace();
+
+        if(ch >= 0)
+        {
+            position--;
+        }
+        return ch;
+    }
+
+    private int read() throws IOException
+    {
+        if(position == limit && !fill())
+        {
+            return -1;
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    private boolean fill() throws IOException
+    {
+        offset += limit;
+        position = 0;
+        limit = 0;
+        int n = in.read(buffer, 0, buffer.length);
+
+        if(n <= 0)
+        {
+            return false;
+        }
+        limit = n;
+        return true;
+    }
+
+    private CustomParserException syntaxError(String description)
+    {
+        return new CustomParserException("JSON inválido na posição " + (offset + position) + ": " + description);
+    }
+}
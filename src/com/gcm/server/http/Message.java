@@ -264,6 +264,39 @@ public final class Message implements Serializable
         return timeToLive;
     }
 
+    /**
+     * Obtém o time to live que ainda resta (em segundos) para um envio, descontado o tempo desde que ele começou. É o valor enviado
+     * ao GCM a cada nova tentativa, para que a mensagem não fique armazenada além do prazo original.
+     *
+     * @param since instante em que o envio começou, em milissegundos desde a época (veja {@link System#currentTimeMillis()}).
+     *
+     * @return remainingTimeToLive, ou {@literal null} se a mensagem não tem time to live.
+     */
+    public Integer getRemainingTimeToLive(long since)
+    {
+        if(timeToLive == null)
+        {
+            return null;
+        }
+
+        // segundos completos, o prazo nunca é encurtado
+        long elapsed = (System.currentTimeMillis() - since) / 1000;
+        return (int)Math.max(0, timeToLive - elapsed);
+    }
+
+    /**
+     * Indica se o time to live de um envio da mensagem terminou e ela não deve mais ser enviada. Mensagens sem time to live, ou com
+     * time to live 0 (entregues imediatamente ou descartadas pelo GCM), nunca expiram.
+     *
+     * @param since instante em que o envio começou, em milissegundos desde a época (veja {@link System#currentTimeMillis()}).
+     *
+     * @return expired
+     */
+    public boolean isExpired(long since)
+    {
+        return timeToLive != null && timeToLive > 0 && System.currentTimeMillis() - since >= timeToLive * 1000L;
+    }
+
     /**
      * Obtém dryRun.
      *
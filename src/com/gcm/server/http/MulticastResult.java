@@ -1,12 +1,14 @@
 package com.gcm.server.http;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 /**
  * Resultado de um pedido GCM message multicast.
+ * <p>
+ * Os resultados individuais são guardados em forma compacta, e os objetos {@link Result} são criados apenas quando acessados por
+ * {@link #getResults()}; para classificar muitos resultados sem criá-los, use {@link #getErrorCode(int)}.
  */
 public final class MulticastResult implements Serializable
 {
@@ -14,12 +16,13 @@ public final class MulticastResult implements Serializable
     private final int failure;
     private final int canonicalIds;
     private final long multicastId;
-    private final List<Result> results;
+    private final ResultColumns results;
     private final List<Long> retryMulticastIds;
+    private final Long retryAfter;
 
     public static final class Builder
     {
-        private final List<Result> results = new ArrayList<>();
+        private final ResultColumns results;
 
         // parâmetros necessários
         private final int success;
@@ -29,6 +32,7 @@ public final class MulticastResult implements Serializable
 
         // parâmetros opcionais
         private List<Long> retryMulticastIds;
+        private Long retryAfter;
 
         public Builder(int success, int failure, int canonicalIds, long multicastId)
         {
@@ -36,6 +40,7 @@ public final class MulticastResult implements Serializable
             this.failure = failure;
             this.canonicalIds = canonicalIds;
             this.multicastId = multicastId;
+            this.results = new ResultColumns(Math.min(Math.max(success + failure, 0), Constants.MAX_MULTICAST_SIZE));
         }
 
         public Builder addResult(Result result)
@@ -44,12 +49,27 @@ public final class MulticastResult implements Serializable
             return this;
         }
 
+        /**
+         * Adiciona todos os resultados de outro multicast, sem criar objetos {@link Result}.
+         */
+        Builder addResults(MulticastResult result)
+        {
+            results.addAll(result.results);
+            return this;
+        }
+
         public Builder retryMulticastIds(List<Long> retryMulticastIds)
         {
             this.retryMulticastIds = retryMulticastIds;
             return this;
         }
 
+        public Builder retryAfter(Long retryAfter)
+        {
+            this.retryAfter = retryAfter;
+            return this;
+        }
+
         public MulticastResult build()
         {
             return new MulticastResult(this);
@@ -62,7 +82,8 @@ public final class MulticastResult implements Serializable
         failure = builder.failure;
         canonicalIds = builder.canonicalIds;
         multicastId = builder.multicastId;
-        results = Collections.unmodifiableList(builder.results);
+        results = builder.results;
+        results.trim();
         List<Long> tmpList = builder.retryMulticastIds;
 
         if(tmpList == null)
@@ -71,6 +92,7 @@ public final class MulticastResult implements Serializable
         }
 
         retryMulticastIds = Collections.unmodifiableList(tmpList);
+        retryAfter = builder.retryAfter;
     }
 
     /**
@@ -130,7 +152,21 @@ public final class MulticastResult implements Serializable
      */
     public List<Result> getResults()
     {
-        return results;
+        return results.asList();
+    }
+
+    /**
+     * Obtém o código de erro de uma mensagem individual sem criar o {@link Result}.
+     *
+     * @param index posição do registration id no request.
+     *
+     * @return código de erro, ou {@literal null} se não houve erro.
+     *
+     * @throws IndexOutOfBoundsException se a posição não existe.
+     */
+    public ErrorCode getErrorCode(int index)
+    {
+        return results.getErrorCode(index);
     }
 
     /**
@@ -143,6 +179,17 @@ public final class MulticastResult implements Serializable
         return retryMulticastIds;
     }
 
+    /**
+     * Obtém o tempo que o GCM pediu para aguardar antes de reenviar as mensagens que falharam com {@literal Unavailable} (header
+     * Retry-After), em milissegundos.
+     *
+     * @return retryAfter, ou {@literal null} se o response não informou.
+     */
+    public Long getRetryAfter()
+    {
+        return retryAfter;
+    }
+
     @Override
     public String toString()
     {
@@ -153,9 +200,9 @@ public final class MulticastResult implements Serializable
                 .append("failure=").append(failure).append(",")
                 .append("canonical_ids=").append(canonicalIds).append(",");
 
-        if(!results.isEmpty())
+        if(results.size() > 0)
         {
-            builder.append("results: ").append(results);
+            builder.append("results: ").append(results.asList());
         }
         return builder.toString();
     }
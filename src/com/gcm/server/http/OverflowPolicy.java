@@ -0,0 +1,21 @@
+package com.gcm.server.http;
+
+/**
+ * O que o {@link DispatchPipeline} faz com um envio quando a fila está cheia.
+ */
+public enum OverflowPolicy
+{
+    /**
+     * O produtor aguarda até haver espaço na fila.
+     */
+    BLOCK,
+    /**
+     * O envio é recusado com {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    FAIL,
+    /**
+     * O envio mais antigo da fila é descartado, e o seu future completado com
+     * {@link java.util.concurrent.RejectedExecutionException}, para dar lugar ao novo.
+     */
+    SHED
+}
@@ -0,0 +1,106 @@
+package com.gcm.server.http;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * {@link Message} já serializada para JSON.
+ * <p>
+ * Os campos da mensagem (priority, time_to_live, collapse_key, data, notification...) são codificados uma única vez; a
+ * cada request apenas o array {@literal registration_ids} é escrito após este fragmento. Útil para enviar a mesma mensagem
+ * em vários lotes multicast ou em várias tentativas.
+ * <p>
+ * As instâncias dessa classe são imutáveis. Examplo:
+ * <pre><code>
+ * PreparedMessage prepared = new PreparedMessage(message);
+ *
+ * for(List&lt;String&gt; chunk : chunks)
+ * {
+ *     sender.send(prepared, chunk, 5);
+ * }
+ * </code></pre>
+ */
+public final class PreparedMessage implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final Message message;
+    private final byte[] prefix;
+    private final int timeToLiveStart;
+    private final int timeToLiveEnd;
+
+    /**
+     * Serializa a mensagem informada.
+     *
+     * @param message mensagem a ser enviada.
+     */
+    public PreparedMessage(Message message)
+    {
+        this.message = Sender.nonNull(message);
+        JsonRequestWriter writer = new JsonRequestWriter(512);
+        this.prefix = writer.writePrefix(message);
+        this.timeToLiveStart = writer.timeToLiveStart();
+        this.timeToLiveEnd = writer.timeToLiveEnd();
+    }
+
+    /**
+     * Obtém a mensagem original.
+     *
+     * @return message
+     */
+    public Message getMessage()
+    {
+        return message;
+    }
+
+    /**
+     * Fragmento UTF-8 com a abertura do objeto JSON, todos os campos da mensagem e o início do campo
+     * {@literal registration_ids}. Não deve ser modificado.
+     */
+    byte[] prefix()
+    {
+        return prefix;
+    }
+
+    /**
+     * Posição do valor do campo {@literal time_to_live} em {@link #prefix()}, -1 se a mensagem não tem time to live.
+     */
+    int timeToLiveStart()
+    {
+        return timeToLiveStart;
+    }
+
+    /**
+     * Posição seguinte ao fim do valor do campo {@literal time_to_live} em {@link #prefix()}.
+     */
+    int timeToLiveEnd()
+    {
+        return timeToLiveEnd;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if(this == obj)
+        {
+            return true;
+        }
+        if(!(obj instanceof PreparedMessage))
+        {
+            return false;
+        }
+        return Arrays.equals(prefix, ((PreparedMessage)obj).prefix);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Arrays.hashCode(prefix);
+    }
+
+    @Override
+    public String toString()
+    {
+        return message.toString();
+    }
+}
@@ -0,0 +1,328 @@
+package com.gcm.server.http;
+
+import static com.gcm.server.http.Constants.MAX_MULTICAST_SIZE;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Valida registration ids em massa, usando mensagens {@code dry_run} multicast de até {@value Constants#MAX_MULTICAST_SIZE} ids.
+ * <p>
+ * Os ids são lidos sob demanda do {@link Iterable} ou {@link Stream}, de modo que a lista completa nunca precisa estar em memória,
+ * e vários lotes são enviados em paralelo. O veredito de cada id é entregue ao {@link Listener} assim que o seu lote termina.
+ * Examplo:
+ * <pre><code>
+ * RegistrationIdValidator validator = new RegistrationIdValidator(sender);
+ * validator.validate(ids, (registrationId, verdict, canonicalRegistrationId) -&gt;
+ * {
+ *     ...
+ * });
+ * </code></pre>
+ * <p>
+ * As instâncias dessa classe são thread-safe.
+ *
+ * @see Sender#checkingRegistrationId(String)
+ */
+public final class RegistrationIdValidator
+{
+    private static final Logger LOGGER = Logger.getLogger(RegistrationIdValidator.class.getName());
+
+    /**
+     * Número default de novas tentativas de cada lote.
+     */
+    public static final int DEFAULT_RETRIES = 5;
+
+    private static final PreparedMessage DRY_RUN = new PreparedMessage(new Message.Builder().dryRun(true).build());
+
+    private final Sender sender;
+    private volatile int parallelism = Sender.DEFAULT_PARALLELISM;
+    private volatile int retries = DEFAULT_RETRIES;
+
+    /**
+     * Veredito de um registration id.
+     */
+    public enum Verdict
+    {
+        /**
+         * O id é válido.
+         */
+        VALID,
+        /**
+         * O id é válido, mas o GCM tem um canonical registration id para o dispositivo, que deve substituí-lo.
+         */
+        CANONICAL,
+        /**
+         * O id é inválido, não está mais registrado ou pertence a outro sender, e deve ser removido.
+         */
+        INVALID,
+        /**
+         * Não foi possível validar o id, por exemplo porque o GCM continuou indisponível depois de todas as tentativas.
+         */
+        UNKNOWN;
+
+        /**
+         * Classifica o resultado de um envio {@code dry_run}.
+         *
+         * @param result resultado do envio, pode ser {@literal null}.
+         *
+         * @return veredito.
+         */
+        public static Verdict of(Result result)
+        {
+            if(result == null)
+            {
+                return UNKNOWN;
+            }
+            if(result.getMessageId() != null)
+            {
+                return result.getCanonicalRegistrationId() == null ? VALID : CANONICAL;
+            }
+
+            ErrorCode error = result.getErrorCode();
+            return error != null && error.isTokenDead() ? INVALID : UNKNOWN;
+        }
+    }
+
+    /**
+     * Recebe os vereditos da validação.
+     * <p>
+     * As chamadas nunca são simultâneas, de modo que a implementação não precisa ser thread-safe; mas são feitas nas threads do
+     * sender e devem ser rápidas.
+     */
+    @FunctionalInterface
+    public interface Listener
+    {
+        /**
+         * Chamado uma vez para cada registration id validado.
+         *
+         * @param registrationId          registration id validado.
+         * @param verdict                 veredito.
+         * @param canonicalRegistrationId novo id do dispositivo quando o veredito é {@link Verdict#CANONICAL}, senão
+         *                                {@literal null}.
+         */
+        void onVerdict(String registrationId, Verdict verdict, String canonicalRegistrationId);
+    }
+
+    /**
+     * @param sender sender usado nos envios.
+     */
+    public RegistrationIdValidator(Sender sender)
+    {
+        this.sender = Sender.nonNull(sender);
+    }
+
+    /**
+     * Define o número máximo de lotes validados simultaneamente.
+     *
+     * @param parallelism número de lotes, ao menos 1.
+     */
+    public void setParallelism(int parallelism)
+    {
+        if(parallelism < 1)
+        {
+            throw new IllegalArgumentException("parallelism deve ser ao menos 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Define o número de novas tentativas de cada lote em caso de indisponibilidade do GCM.
+     *
+     * @param retries número de novas tentativas.
+     */
+    public void setRetries(int retries)
+    {
+        if(retries < 0)
+        {
+            throw new IllegalArgumentException("retries não pode ser negativo");
+        }
+        this.retries = retries;
+    }
+
+    /**
+     * Valida os registration ids, bloqueando até o fim.
+     *
+     * @param registrationIds ids a validar.
+     * @param listener        receptor dos vereditos.
+     *
+     * @throws InvalidRequestException se o GCM rejeitou o request (por exemplo, API key inválida).
+     * @throws IOException             se a validação foi interrompida.
+     */
+    public void validate(Iterable<String> registrationIds, Listener listener) throws IOException
+    {
+        Sender.await(() -> validateAsync(registrationIds, listener));
+    }
+
+    /**
+     * Valida os registration ids, bloqueando até o fim.
+     *
+     * @param registrationIds ids a validar.
+     * @param listener        receptor dos vereditos.
+     *
+     * @throws InvalidRequestException se o GCM rejeitou o request (por exemplo, API key inválida).
+     * @throws IOException             se a validação foi interrompida.
+     */
+    public void validate(Stream<String> registrationIds, Listener listener) throws IOException
+    {
+        Sender.await(() -> validateAsync(registrationIds, listener));
+    }
+
+    /**
+     * Valida os registration ids de forma assíncrona.
+     *
+     * @param registrationIds ids a validar.
+     * @param listener        receptor dos vereditos.
+     *
+     * @return future completado quando todos os ids foram validados; cancelá-lo interrompe a leitura de novos lotes.
+     */
+    public CompletableFuture<Void> validateAsync(Stream<String> registrationIds, Listener listener)
+    {
+        return validateAsync(Sender.nonNull(registrationIds).iterator(), listener);
+    }
+
+    /**
+     * Valida os registration ids de forma assíncrona.
+     *
+     * @param registrationIds ids a validar.
+     * @param listener        receptor dos vereditos.
+     *
+     * @return future completado quando todos os ids foram validados; cancelá-lo interrompe a leitura de novos lotes.
+     */
+    public CompletableFuture<Void> validateAsync(Iterable<String> registrationIds, Listener listener)
+    {
+        return validateAsync(Sender.nonNull(registrationIds).iterator(), listener);
+    }
+
+    private CompletableFuture<Void> validateAsync(Iterator<String> iterator, Listener listener)
+    {
+        Validation validation = new Validation(iterator, Sender.nonNull(listener), retries);
+        int chains = parallelism;
+
+        validation.running.set(chains);
+
+        for(int i = 0; i < chains; i++)
+        {
+            validation.next();
+        }
+
+        return validation.future;
+    }
+
+    /**
+     * Estado de uma validação: cada cadeia lê o próximo lote, valida e recomeça até o fim dos ids.
+     */
+    private final class Validation
+    {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        final AtomicInteger running = new AtomicInteger();
+        private final Iterator<String> iterator;
+        private final Listener listener;
+        private final int retries;
+
+        Validation(Iterator<String> iterator, Listener listener, int retries)
+        {
+            this.iterator = iterator;
+            this.listener = listener;
+            this.retries = retries;
+        }
+
+        void next()
+        {
+            List<String> chunk;
+
+            try
+            {
+                chunk = nextChunk();
+            }
+            catch(RuntimeException e)
+            {
+                future.completeExceptionally(e);
+                chunk = null;
+            }
+
+            if(chunk == null)
+            {
+                // último lote desta cadeia; a última cadeia a terminar completa a validação
+                if(running.decrementAndGet() == 0)
+                {
+                    future.complete(null);
+                }
+                return;
+            }
+
+            List<String> regIds = chunk;
+
+            sender.sendAsync(DRY_RUN, regIds, retries).whenComplete((result, error) ->
+            {
+                try
+                {
+                    report(regIds, result, error);
+                }
+                catch(RuntimeException e)
+                {
+                    future.completeExceptionally(e);
+                }
+
+                next();
+            });
+        }
+
+        private List<String> nextChunk()
+        {
+            synchronized(iterator)
+            {
+                if(future.isDone() || !iterator.hasNext())
+                {
+                    return null;
+                }
+
+                List<String> chunk = new ArrayList<>(MAX_MULTICAST_SIZE);
+
+                while(chunk.size() < MAX_MULTICAST_SIZE && iterator.hasNext())
+                {
+                    chunk.add(iterator.next());
+                }
+
+                return chunk;
+            }
+        }
+
+        private void report(List<String> regIds, MulticastResult result, Throwable error)
+        {
+            if(error != null)
+            {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+
+                // request rejeitado pelo GCM: os demais lotes também seriam
+                if(cause instanceof InvalidRequestException && ((InvalidRequestException)cause).getHttpStatusCode() < 500)
+                {
+                    future.completeExceptionally(cause);
+                    return;
+                }
+
+                LOGGER.log(Level.WARNING, "Não foi possível validar um lote de " + regIds.size() + " registration ids", cause);
+            }
+
+            List<Result> results = result != null ? result.getResults() : null;
+
+            synchronized(listener)
+            {
+                for(int i = 0; i < regIds.size(); i++)
+                {
+                    Result item = results != null ? results.get(i) : null;
+                    Verdict verdict = Verdict.of(item);
+
+                    listener.onVerdict(regIds.get(i), verdict, verdict == Verdict.CANONICAL ? item.getCanonicalRegistrationId() : null);
+                }
+            }
+        }
+    }
+}
@@ -29,9 +29,25 @@ import java.io.Serializable;
 public final class Result implements Serializable
 {
 
+    /**
+     * Resultado das mensagens descartadas pelo sender porque o time to live terminou.
+     */
+    static final Result EXPIRED = new Result.Builder().errorCode(Constants.ERROR_EXPIRED).build();
+
+    /**
+     * Resultado dos registration ids descartados pelo sender porque estão no {@link DeadTokenFilter}.
+     */
+    static final Result DEAD_TOKEN = new Result.Builder().errorCode(Constants.ERROR_DEAD_TOKEN).build();
+
+    /**
+     * Resultado das posições retomadas de um journal que não puderam ser enviadas novamente.
+     */
+    static final Result UNAVAILABLE = new Result.Builder().errorCode(Constants.ERROR_UNAVAILABLE).build();
+
     private final String messageId;
     private final String canonicalRegistrationId;
-    private final String errorCode;
+    private final String errorCodeName;
+    private final ErrorCode errorCode;
 
     public static final class Builder
     {
@@ -39,7 +55,8 @@ public final class Result implements Serializable
         // parametros opcionais
         private String messageId;
         private String canonicalRegistrationId;
-        private String errorCode;
+        private String errorCodeName;
+        private ErrorCode errorCode;
 
         public Builder canonicalRegistrationId(String value)
         {
@@ -55,7 +72,8 @@ public final class Result implements Serializable
 
         public Builder errorCode(String value)
         {
-            errorCode = value;
+            errorCodeName = value;
+            errorCode = ErrorCode.of(value);
             return this;
         }
 
@@ -69,6 +87,7 @@ public final class Result implements Serializable
     {
         canonicalRegistrationId = builder.canonicalRegistrationId;
         messageId = builder.messageId;
+        errorCodeName = builder.errorCodeName;
         errorCode = builder.errorCode;
     }
 
@@ -96,6 +115,17 @@ public final class Result implements Serializable
      * @return 
      */
     public String getErrorCodeName()
+    {
+        return errorCodeName;
+    }
+
+    /**
+     * Obtém o código de erro já classificado, se houver.
+     *
+     * @return código de erro, {@link ErrorCode#UNKNOWN} se o GCM retornou um código não reconhecido, ou {@literal null} se não
+     *         houve erro.
+     */
+    public ErrorCode getErrorCode()
     {
         return errorCode;
     }
@@ -114,9 +144,9 @@ public final class Result implements Serializable
             builder.append(" canonicalRegistrationId=")
                     .append(canonicalRegistrationId);
         }
-        if(errorCode != null)
+        if(errorCodeName != null)
         {
-            builder.append(" errorCode=").append(errorCode);
+            builder.append(" errorCode=").append(errorCodeName);
         }
 
         return builder.append(" ]").toString();
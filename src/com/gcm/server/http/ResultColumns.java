@@ -0,0 +1,343 @@
+package com.gcm.server.http;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Armazenamento compacto dos resultados de um {@link MulticastResult}, em colunas indexadas pela posição do registration id.
+ * <p>
+ * Cada posição ocupa um byte de tipo e um {@code long}: o message id, quando ele é numérico ou segue o formato
+ * {@code 0:<número>%<16 dígitos hexadecimais>} do GCM (neste caso a parte hexadecimal vai para uma segunda coluna, criada apenas
+ * quando necessário), ou o ordinal do {@link ErrorCode}. Message ids em outro formato, códigos de erro desconhecidos e canonical
+ * registration ids ficam em mapas esparsos, de modo que a memória é proporcional aos resultados incomuns.
+ * <p>
+ * Os objetos {@link Result} são criados sob demanda por {@link #asList()}.
+ */
+final class ResultColumns implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final byte EMPTY = 0;
+    private static final byte NUMERIC_ID = 1;
+    private static final byte GCM_ID = 2;
+    private static final byte STRING_ID = 3;
+    private static final byte ERROR = 4;
+
+    private static final String GCM_ID_PREFIX = "0:";
+    private static final int GCM_ID_SUFFIX_LENGTH = 16;
+
+    private static final ErrorCode[] ERROR_CODES = ErrorCode.values();
+
+    private byte[] kinds;
+    private long[] values;
+    private long[] suffixes;
+    private int size;
+
+    // posição -> message id fora dos formatos numéricos, ou nome de um código de erro desconhecido
+    private Map<Integer, String> strings;
+    // posição -> canonical registration id
+    private Map<Integer, String> canonicalIds;
+
+    ResultColumns(int capacity)
+    {
+        kinds = new byte[Math.max(capacity, 1)];
+        values = new long[kinds.length];
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    void add(Result result)
+    {
+        add(result.getMessageId(), result.getCanonicalRegistrationId(), result.getErrorCodeName(), result.getErrorCode());
+    }
+
+    void addAll(ResultColumns other)
+    {
+        for(int i = 0; i < other.size; i++)
+        {
+            ensureCapacity();
+
+            kinds[size] = other.kinds[i];
+            values[size] = other.values[i];
+
+            if(other.suffixes != null && other.kinds[i] == GCM_ID)
+            {
+                suffixes()[size] = other.suffixes[i];
+            }
+            if(other.strings != null && other.strings.containsKey(i))
+            {
+                strings().put(size, other.strings.get(i));
+            }
+            if(other.canonicalIds != null && other.canonicalIds.containsKey(i))
+            {
+                canonicalIds().put(size, other.canonicalIds.get(i));
+            }
+
+            size++;
+        }
+    }
+
+    /**
+     * Libera a capacidade não usada das colunas.
+     */
+    void trim()
+    {
+        if(kinds.length > size)
+        {
+            kinds = Arrays.copyOf(kinds, size);
+            values = Arrays.copyOf(values, size);
+
+            if(suffixes != null)
+            {
+                suffixes = Arrays.copyOf(suffixes, size);
+            }
+        }
+    }
+
+    ErrorCode getErrorCode(int index)
+    {
+        checkIndex(index);
+        return kinds[index] == ERROR ? ERROR_CODES[(int)values[index]] : null;
+    }
+
+    Result get(int index)
+    {
+        checkIndex(index);
+
+        Result.Builder builder = new Result.Builder();
+
+        switch(kinds[index])
+        {
+            case NUMERIC_ID:
+                builder.messageId(Long.toString(values[index]));
+                break;
+            case GCM_ID:
+                builder.messageId(formatGcmId(values[index], suffixes[index]));
+                break;
+            case STRING_ID:
+                builder.messageId(strings.get(index));
+                break;
+            case ERROR:
+                ErrorCode code = ERROR_CODES[(int)values[index]];
+                builder.errorCode(code == ErrorCode.UNKNOWN ? strings.get(index) : code.getName());
+                break;
+            default:
+                break;
+        }
+
+        if(canonicalIds != null)
+        {
+            builder.canonicalRegistrationId(canonicalIds.get(index));
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Obtém uma visão imutável dos resultados, que cria cada {@link Result} ao ser acessada.
+     *
+     * @return results
+     */
+    List<Result> asList()
+    {
+        return new ResultList();
+    }
+
+    private void add(String messageId, String canonicalId, String errorName, ErrorCode errorCode)
+    {
+        ensureCapacity();
+
+        if(messageId != null)
+        {
+            addMessageId(messageId);
+        }
+        else if(errorCode != null)
+        {
+            kinds[size] = ERROR;
+            values[size] = errorCode.ordinal();
+
+            if(errorCode == ErrorCode.UNKNOWN)
+            {
+                strings().put(size, errorName);
+            }
+        }
+        else
+        {
+            kinds[size] = EMPTY;
+        }
+
+        if(canonicalId != null)
+        {
+            canonicalIds().put(size, canonicalId);
+        }
+
+        size++;
+    }
+
+    private void addMessageId(String messageId)
+    {
+        long value = parseDecimal(messageId, 0, messageId.length());
+
+        if(value >= 0)
+        {
+            kinds[size] = NUMERIC_ID;
+            values[size] = value;
+            return;
+        }
+
+        int separator = messageId.indexOf('%');
+
+        if(messageId.startsWith(GCM_ID_PREFIX) && separator > 0 && messageId.length() - separator - 1 == GCM_ID_SUFFIX_LENGTH)
+        {
+            value = parseDecimal(messageId, GCM_ID_PREFIX.length(), separator);
+            long suffix = 0;
+            int i = separator + 1;
+
+            // apenas dígitos minúsculos, para que a forma compacta reproduza exatamente o id original
+            for(int digit; value >= 0 && i < messageId.length() && (digit = hexDigit(messageId.charAt(i))) >= 0; i++)
+            {
+                suffix = suffix << 4 | digit;
+            }
+
+            if(value >= 0 && i == messageId.length())
+            {
+                kinds[size] = GCM_ID;
+                values[size] = value;
+                suffixes()[size] = suffix;
+                return;
+            }
+        }
+
+        kinds[size] = STRING_ID;
+        strings().put(size, messageId);
+    }
+
+    /**
+     * Converte um trecho com um número decimal não negativo na forma de {@link Long#toString(long)}, sem zeros à esquerda. Os
+     * resultados de todos os envios passam por aqui, por isso nenhum formato é tratado com exceções.
+     *
+     * @return valor, ou -1 se o trecho não está nessa forma ou não cabe em um long.
+     */
+    private static long parseDecimal(String value, int from, int to)
+    {
+        if(from == to || (value.charAt(from) == '0' && to - from > 1))
+        {
+            return -1;
+        }
+
+        long result = 0;
+
+        for(int i = from; i < to; i++)
+        {
+            int digit = value.charAt(i) - '0';
+
+            if(digit < 0 || digit > 9 || result > (Long.MAX_VALUE - digit) / 10)
+            {
+                return -1;
+            }
+            result = result * 10 + digit;
+        }
+
+        return result;
+    }
+
+    private static int hexDigit(char ch)
+    {
+        if(ch >= '0' && ch <= '9')
+        {
+            return ch - '0';
+        }
+        if(ch >= 'a' && ch <= 'f')
+        {
+            return ch - 'a' + 10;
+        }
+        return -1;
+    }
+
+    private static String formatGcmId(long value, long suffix)
+    {
+        String hex = Long.toHexString(suffix);
+        StringBuilder builder = new StringBuilder(GCM_ID_PREFIX.length() + 20 + 1 + GCM_ID_SUFFIX_LENGTH)
+                .append(GCM_ID_PREFIX).append(value).append('%');
+
+        for(int i = hex.length(); i < GCM_ID_SUFFIX_LENGTH; i++)
+        {
+            builder.append('0');
+        }
+
+        return builder.append(hex).toString();
+    }
+
+    private void ensureCapacity()
+    {
+        if(size == kinds.length)
+        {
+            int capacity = kinds.length * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            values = Arrays.copyOf(values, capacity);
+
+            if(suffixes != null)
+            {
+                suffixes = Arrays.copyOf(suffixes, capacity);
+            }
+        }
+    }
+
+    private long[] suffixes()
+    {
+        if(suffixes == null)
+        {
+            suffixes = new long[kinds.length];
+        }
+        return suffixes;
+    }
+
+    private Map<Integer, String> strings()
+    {
+        if(strings == null)
+        {
+            strings = new HashMap<>();
+        }
+        return strings;
+    }
+
+    private Map<Integer, String> canonicalIds()
+    {
+        if(canonicalIds == null)
+        {
+            canonicalIds = new HashMap<>();
+        }
+        return canonicalIds;
+    }
+
+    private void checkIndex(int index)
+    {
+        if(index < 0 || index >= size)
+        {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        }
+    }
+
+    private final class ResultList extends AbstractList<Result> implements RandomAccess
+    {
+        @Override
+        public Result get(int index)
+        {
+            return ResultColumns.this.get(index);
+        }
+
+        @Override
+        public int size()
+        {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.gcm.server.http;
+
+/**
+ * Recebe o resultado de cada registration id de um envio multicast, à medida que os lotes terminam.
+ * <p>
+ * Com um listener, o {@link Sender} não guarda os resultados individuais: o {@link MulticastResult} retornado contém apenas o
+ * resumo (contadores e multicast ids), de modo que um envio para milhões de dispositivos usa memória constante. As chamadas nunca
+ * são simultâneas, mas são feitas nas threads do sender e devem ser rápidas. Examplo:
+ * <pre><code>
+ * sender.send(message, regIds, 5, (regId, result) -&gt;
+ * {
+ *     if(result.getErrorCode() != null &amp;&amp; result.getErrorCode().isTokenDead())
+ *     {
+ *         ...
+ *     }
+ * });
+ * </code></pre>
+ *
+ * @see Sender#sendAsync(PreparedMessage, java.util.List, int, ResultListener)
+ */
+@FunctionalInterface
+public interface ResultListener
+{
+    /**
+     * Chamado uma vez para cada posição da lista de registration ids, com o resultado final depois das novas tentativas.
+     *
+     * @param registrationId registration id do dispositivo.
+     * @param result         resultado do envio para o dispositivo.
+     */
+    void onResult(String registrationId, Result result);
+}
@@ -0,0 +1,304 @@
+package com.gcm.server.http;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Executa tentativas de envio e agenda as novas tentativas, sem bloquear threads durante o back-off.
+ * <p>
+ * Cada tentativa roda no executor, ou no executor de prioridade se a tarefa é de alta prioridade, de modo que ela nunca aguarda na
+ * fila atrás das tentativas normais; o atraso até a próxima é calculado pela {@link BackoffPolicy} e aguardado no scheduler, que apenas
+ * devolve a tarefa ao executor quando o tempo expira.
+ * <p>
+ * Uma thread que executa uma tentativa (por exemplo, em um {@link ResultListener} ou em um callback do future) e aguarda outro
+ * envio em {@link #await(Supplier)} executa ela mesma as tentativas desse envio, de modo que as threads do executor nunca ficam
+ * todas bloqueadas aguardando tentativas que estão na fila do próprio executor.
+ * <p>
+ * As instâncias dessa classe são imutáveis.
+ */
+final class RetryEngine
+{
+    // indica que a thread está executando uma tentativa
+    private static final ThreadLocal<Boolean> RUNNING = new ThreadLocal<>();
+    // executor das tentativas criadas pela thread enquanto ela aguarda em await
+    private static final ThreadLocal<CallerExecutor> CALLER = new ThreadLocal<>();
+
+    private final ExecutorService executor;
+    private final ExecutorService priorityExecutor;
+    private final ScheduledExecutorService scheduler;
+    private final BackoffPolicy policy;
+
+    RetryEngine(ExecutorService executor, ExecutorService priorityExecutor, ScheduledExecutorService scheduler, BackoffPolicy policy)
+    {
+        this.executor = executor;
+        this.priorityExecutor = priorityExecutor;
+        this.scheduler = scheduler;
+        this.policy = policy;
+    }
+
+    ExecutorService getExecutor()
+    {
+        return executor;
+    }
+
+    ExecutorService getPriorityExecutor()
+    {
+        return priorityExecutor;
+    }
+
+    ScheduledExecutorService getScheduler()
+    {
+        return scheduler;
+    }
+
+    BackoffPolicy getPolicy()
+    {
+        return policy;
+    }
+
+    /**
+     * Executa uma tentativa no executor, imediatamente ou depois do atraso informado.
+     */
+    void execute(Task<?> task, long delay)
+    {
+        try
+        {
+            if(delay <= 0)
+            {
+                if(task.caller == null || !task.caller.offer(task))
+                {
+                    (task.isPriority() ? priorityExecutor : executor).execute(task);
+                }
+            }
+            else
+            {
+                scheduler.schedule(() -> execute(task, 0), delay, TimeUnit.MILLISECONDS);
+            }
+        }
+        catch(RejectedExecutionException e)
+        {
+            task.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Inicia uma operação assíncrona e aguarda o seu resultado. Se a thread chamadora está executando uma tentativa, as tentativas
+     * criadas durante a espera são executadas na própria thread, e não no executor.
+     *
+     * @param operation inicia a operação.
+     *
+     * @return resultado da operação.
+     *
+     * @throws InterruptedException se a thread foi interrompida enquanto aguardava.
+     * @throws ExecutionException   se a operação falhou.
+     */
+    static <T> T await(Supplier<CompletableFuture<T>> operation) throws InterruptedException, ExecutionException
+    {
+        if(RUNNING.get() == null)
+        {
+            return operation.get().get();
+        }
+
+        CallerExecutor caller = new CallerExecutor();
+        CallerExecutor previous = CALLER.get();
+        CALLER.set(caller);
+
+        try
+        {
+            CompletableFuture<T> future = operation.get();
+            future.whenComplete((result, error) -> caller.wakeUp());
+
+            try
+            {
+                caller.runUntil(future);
+            }
+            catch(InterruptedException e)
+            {
+                future.cancel(false);
+                throw e;
+            }
+
+            return future.get();
+        }
+        finally
+        {
+            CALLER.set(previous);
+            caller.close();
+        }
+    }
+
+    /**
+     * Fila das tentativas executadas pela thread que aguarda em {@link RetryEngine#await(Supplier)}. Depois da espera, as
+     * tentativas restantes, de outros envios iniciados pela thread, voltam ao executor das suas tarefas.
+     */
+    private static final class CallerExecutor
+    {
+        private static final Runnable WAKE_UP = () ->
+        {
+        };
+
+        private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+        private boolean closed;
+
+        synchronized boolean offer(Task<?> task)
+        {
+            return !closed && queue.add(task);
+        }
+
+        void wakeUp()
+        {
+            queue.add(WAKE_UP);
+        }
+
+        void runUntil(CompletableFuture<?> future) throws InterruptedException
+        {
+            while(!future.isDone())
+            {
+                queue.take().run();
+            }
+        }
+
+        void close()
+        {
+            synchronized(this)
+            {
+                closed = true;
+            }
+
+            for(Runnable runnable; (runnable = queue.poll()) != null;)
+            {
+                if(runnable != WAKE_UP)
+                {
+                    Task<?> task = (Task<?>)runnable;
+                    task.engine.execute(task, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Operação com novas tentativas. Cada execução é uma tentativa: a implementação completa {@link #future} ou chama
+     * {@link #retry()}.
+     * <p>
+     * As tentativas de uma mesma tarefa nunca são simultâneas, de modo que o estado da implementação não precisa de sincronização.
+     *
+     * @param <T> tipo do resultado.
+     */
+    abstract static class Task<T> implements Runnable
+    {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        private final RetryEngine engine;
+        private final CallerExecutor caller = CALLER.get();
+        private int attempt;
+        private long delay;
+        private boolean reserved;
+
+        Task(RetryEngine engine)
+        {
+            this.engine = engine;
+        }
+
+        /**
+         * Inicia a primeira tentativa.
+         *
+         * @return future com o resultado final.
+         */
+        CompletableFuture<T> start()
+        {
+            engine.execute(this, 0);
+            return future;
+        }
+
+        @Override
+        public final void run()
+        {
+            // cancelado ou completado externamente, não há por que tentar novamente
+            if(future.isDone())
+            {
+                return;
+            }
+
+            // aguardar a capacidade reservada antes de tentar, sem contar como tentativa
+            if(!reserved)
+            {
+                long wait = reserve();
+
+                if(wait > 0)
+                {
+                    reserved = true;
+                    engine.execute(this, wait);
+                    return;
+                }
+            }
+
+            reserved = false;
+            attempt++;
+            Boolean running = RUNNING.get();
+            RUNNING.set(Boolean.TRUE);
+
+            try
+            {
+                attempt(attempt);
+            }
+            catch(RuntimeException e)
+            {
+                future.completeExceptionally(e);
+            }
+            finally
+            {
+                RUNNING.set(running);
+            }
+        }
+
+        /**
+         * Indica se as tentativas são executadas no executor de prioridade.
+         */
+        boolean isPriority()
+        {
+            return false;
+        }
+
+        /**
+         * Reserva a capacidade necessária para a próxima tentativa, chamado antes de cada tentativa.
+         *
+         * @return quanto a tentativa deve aguardar, em milissegundos; 0 para executá-la imediatamente.
+         */
+        long reserve()
+        {
+            return 0;
+        }
+
+        /**
+         * Executa uma tentativa.
+         *
+         * @param attempt número da tentativa, começando em 1.
+         */
+        abstract void attempt(int attempt);
+
+        /**
+         * Agenda a próxima tentativa conforme a política de back-off.
+         */
+        final void retry()
+        {
+            retry(null);
+        }
+
+        /**
+         * Agenda a próxima tentativa para o tempo pedido pelo servidor ou, se ausente, conforme a política de back-off.
+         *
+         * @param retryAfter atraso pedido pelo servidor (header Retry-After), em milissegundos, ou {@literal null}.
+         */
+        final void retry(Long retryAfter)
+        {
+            delay = retryAfter != null ? retryAfter : engine.policy.nextDelay(attempt, delay);
+            engine.execute(this, delay);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.gcm.server.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fila circular limitada, sem locks, para vários produtores e vários consumidores.
+ * <p>
+ * Cada posição tem um número de sequência que indica se ela está livre para o produtor ou pronta para o consumidor da volta
+ * atual; produtores e consumidores disputam apenas o contador da sua ponta com compare-and-set. A escrita da sequência publica o
+ * elemento, de modo que nenhum outro sincronismo é necessário.
+ *
+ * @param <E> tipo dos elementos.
+ */
+final class RingBuffer<E>
+{
+    private final Object[] items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity capacidade mínima, arredondada para a próxima potência de 2.
+     */
+    RingBuffer(int capacity)
+    {
+        if(capacity < 1 || capacity > (1 << 30))
+        {
+            throw new IllegalArgumentException("capacity deve estar entre 1 e 2^30");
+        }
+
+        int size = Integer.highestOneBit(capacity);
+
+        if(size < capacity)
+        {
+            size <<= 1;
+        }
+
+        items = new Object[size];
+        sequences = new AtomicLongArray(size);
+        mask = size - 1;
+
+        for(int i = 0; i < size; i++)
+        {
+            sequences.set(i, i);
+        }
+    }
+
+    int capacity()
+    {
+        return items.length;
+    }
+
+    /**
+     * Obtém o número aproximado de elementos na fila.
+     */
+    int size()
+    {
+        long size = head.get() - tail.get();
+        return (int)Math.max(0, Math.min(size, items.length));
+    }
+
+    /**
+     * Adiciona um elemento no fim da fila.
+     *
+     * @return {@literal false} se a fila está cheia.
+     */
+    boolean offer(E item)
+    {
+        long position = head.get();
+
+        for(;;)
+        {
+            int index = (int)position & mask;
+            long difference = sequences.get(index) - position;
+
+            if(difference == 0)
+            {
+                if(head.compareAndSet(position, position + 1))
+                {
+                    items[index] = item;
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = head.get();
+            }
+            else if(difference < 0)
+            {
+                // a posição ainda não foi consumida na volta anterior
+                return false;
+            }
+            else
+            {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * Retira o elemento do início da fila.
+     *
+     * @return elemento, ou {@literal null} se a fila está vazia.
+     */
+    @SuppressWarnings("unchecked")
+    E poll()
+    {
+        long position = tail.get();
+
+        for(;;)
+        {
+            int index = (int)position & mask;
+            long difference = sequences.get(index) - (position + 1);
+
+            if(difference == 0)
+            {
+                if(tail.compareAndSet(position, position + 1))
+                {
+                    E item = (E)items[index];
+                    items[index] = null;
+                    sequences.set(index, position + items.length);
+                    return item;
+                }
+                position = tail.get();
+            }
+            else if(difference < 0)
+            {
+                // a posição ainda não foi publicada
+                return null;
+            }
+            else
+            {
+                position = tail.get();
+            }
+        }
+    }
+}
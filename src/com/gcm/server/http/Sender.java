@@ -1,55 +1,38 @@
 package com.gcm.server.http;
 
 import static com.gcm.server.http.Constants.GCM_SEND_ENDPOINT;
-import static com.gcm.server.http.Constants.JSON_CANONICAL_IDS;
-import static com.gcm.server.http.Constants.JSON_ERROR;
-import static com.gcm.server.http.Constants.JSON_FAILURE;
-import static com.gcm.server.http.Constants.JSON_MESSAGE_ID;
-import static com.gcm.server.http.Constants.JSON_MULTICAST_ID;
-import static com.gcm.server.http.Constants.JSON_NOTIFICATION;
-import static com.gcm.server.http.Constants.JSON_NOTIFICATION_BADGE;
-import static com.gcm.server.http.Constants.JSON_NOTIFICATION_BODY;
-import static com.gcm.server.http.Constants.JSON_NOTIFICATION_BODY_LOC_ARGS;
-import static com.gcm.server.http.Constants.JSON_NOTIFICATION_BODY_LOC_KEY;
-import static com.gcm.server.http.Constants.JSON_NOTIFICATION_CLICK_ACTION;
-import static com.gcm.server.http.Constants.JSON_NOTIFICATION_COLOR;
-import static com.gcm.server.http.Constants.JSON_NOTIFICATION_ICON;
-import static com.gcm.server.http.Constants.JSON_NOTIFICATION_SOUND;
-import static com.gcm.server.http.Constants.JSON_NOTIFICATION_TAG;
-import static com.gcm.server.http.Constants.JSON_NOTIFICATION_TITLE;
-import static com.gcm.server.http.Constants.JSON_NOTIFICATION_TITLE_LOC_ARGS;
-import static com.gcm.server.http.Constants.JSON_NOTIFICATION_TITLE_LOC_KEY;
-import static com.gcm.server.http.Constants.JSON_PAYLOAD;
-import static com.gcm.server.http.Constants.JSON_REGISTRATION_IDS;
-import static com.gcm.server.http.Constants.JSON_RESULTS;
-import static com.gcm.server.http.Constants.JSON_SUCCESS;
-import static com.gcm.server.http.Constants.PARAM_COLLAPSE_KEY;
-import static com.gcm.server.http.Constants.PARAM_DELAY_WHILE_IDLE;
-import static com.gcm.server.http.Constants.PARAM_DRY_RUN;
-import static com.gcm.server.http.Constants.PARAM_PRIORITY;
-import static com.gcm.server.http.Constants.PARAM_RESTRICTED_PACKAGE_NAME;
-import static com.gcm.server.http.Constants.PARAM_TIME_TO_LIVE;
-import static com.gcm.server.http.Constants.TOKEN_CANONICAL_REG_ID;
+import static com.gcm.server.http.Constants.HEADER_RETRY_AFTER;
+import static com.gcm.server.http.Constants.MAX_MULTICAST_SIZE;
 import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.RandomAccess;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
 /**
  * Classe auxiliar para enviar mensagens para o serviço GCM usando uma API Key.
@@ -67,10 +50,35 @@ public class Sender
      */
     protected static final int MAX_BACKOFF_DELAY = 1024000;
 
+    /**
+     * @deprecated não é mais usado; o jitter entre as tentativas é sorteado pela {@link BackoffPolicy} (veja
+     * {@link #setBackoffPolicy(BackoffPolicy)}).
+     */
+    @Deprecated
     protected final Random random = new Random();
+
+    /**
+     * Buffer de serialização por thread, reutilizado entre requests.
+     */
+    private static final ThreadLocal<JsonRequestWriter> WRITER = ThreadLocal.withInitial(() -> new JsonRequestWriter(8192));
+    // maior buffer de serialização mantido por thread; comporta um lote completo de registration ids
+    private static final int MAX_WRITER_CAPACITY = 1 << 18;
+
     protected static final Logger LOGGER = Logger.getLogger(Sender.class.getName());
 
+    /**
+     * Número default de lotes multicast enviados simultaneamente.
+     */
+    protected static final int DEFAULT_PARALLELISM = 4;
+
     private final String key;
+    private volatile int parallelism = DEFAULT_PARALLELISM;
+    private volatile RetryEngine engine = new RetryEngine(SenderThreads.WORKERS, SenderThreads.PRIORITY_WORKERS, SenderThreads.SCHEDULER,
+            new ExponentialBackoff(BACKOFF_INITIAL_DELAY, MAX_BACKOFF_DELAY));
+    private volatile Transport transport = new ConnectionTransport();
+    private volatile AdaptiveRateLimiter rateLimiter;
+    private volatile TokenStore tokenStore;
+    private volatile DeadTokenFilter deadTokenFilter;
 
     /**
      * Default constructor.
@@ -82,6 +90,125 @@ public class Sender
         this.key = nonNull(key);
     }
 
+    /**
+     * Define quantos lotes de até {@link Constants#MAX_MULTICAST_SIZE} registration ids são enviados simultaneamente quando uma
+     * lista maior é passada para {@link #send(Message, List, int)} (valor default é {@value #DEFAULT_PARALLELISM}).
+     *
+     * @param parallelism número máximo de requests simultâneos por envio.
+     *
+     * @throws IllegalArgumentException se parallelism é menor que 1.
+     */
+    public void setParallelism(int parallelism)
+    {
+        if(parallelism < 1)
+        {
+            throw new IllegalArgumentException("parallelism deve ser maior que zero");
+        }
+
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Define o executor onde as tentativas de envio são executadas. Por padrão é usado um pool de threads daemon compartilhado. As
+     * tentativas das mensagens de alta prioridade usam um executor próprio (veja {@link #setPriorityExecutor(ExecutorService)}).
+     *
+     * @param executor executor das tentativas.
+     */
+    public synchronized void setExecutor(ExecutorService executor)
+    {
+        engine = new RetryEngine(nonNull(executor), engine.getPriorityExecutor(), engine.getScheduler(), engine.getPolicy());
+    }
+
+    /**
+     * Define o executor onde as tentativas das mensagens de alta prioridade ({@link Constants#MESSAGE_PRIORITY_HIGH}) são executadas,
+     * de modo que elas não aguardam atrás das tentativas normais. Por padrão é usado um pool de threads daemon compartilhado,
+     * separado do pool das tentativas normais.
+     *
+     * @param executor executor das tentativas de alta prioridade.
+     */
+    public synchronized void setPriorityExecutor(ExecutorService executor)
+    {
+        engine = new RetryEngine(engine.getExecutor(), nonNull(executor), engine.getScheduler(), engine.getPolicy());
+    }
+
+    /**
+     * Define o scheduler usado para aguardar o back-off entre as tentativas. O scheduler apenas agenda; as tentativas são executadas
+     * no executor. Por padrão é usado um scheduler daemon compartilhado.
+     *
+     * @param scheduler scheduler das novas tentativas.
+     */
+    public synchronized void setScheduler(ScheduledExecutorService scheduler)
+    {
+        engine = new RetryEngine(engine.getExecutor(), engine.getPriorityExecutor(), nonNull(scheduler), engine.getPolicy());
+    }
+
+    /**
+     * Define a política de back-off entre as tentativas (valor default é {@link ExponentialBackoff} de
+     * {@value #BACKOFF_INITIAL_DELAY} ms até {@value #MAX_BACKOFF_DELAY} ms).
+     *
+     * @param policy política de back-off.
+     */
+    public synchronized void setBackoffPolicy(BackoffPolicy policy)
+    {
+        engine = new RetryEngine(engine.getExecutor(), engine.getPriorityExecutor(), engine.getScheduler(), nonNull(policy));
+    }
+
+    /**
+     * Define o limitador de taxa dos envios multicast. Cada tentativa aguarda, no scheduler, os tokens dos seus registration ids, e
+     * as respostas do GCM ajustam a taxa. Com um limitador, as mensagens que falham com {@link ErrorCode#QUOTA_EXCEEDED} ou
+     * {@link ErrorCode#DEVICE_QUOTA_EXCEEDED} também são repetidas. Os métodos {@code sendNoRetry} não são limitados.
+     *
+     * @param rateLimiter limitador compartilhado pelos senders da mesma API key, ou {@literal null} para não limitar.
+     */
+    public void setRateLimiter(AdaptiveRateLimiter rateLimiter)
+    {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Define o dicionário de canonical registration ids. Antes de cada multicast os registration ids com canonical id conhecido
+     * são trocados pelo canonical id, cujo resultado informa o canonical id em {@link Result#getCanonicalRegistrationId()}; e
+     * cada canonical id retornado pelo GCM é registrado no dicionário. Os métodos {@code sendNoRetry} não usam o dicionário.
+     *
+     * @param tokenStore dicionário compartilhado pelos senders, ou {@literal null} para não trocar os registration ids.
+     */
+    public void setTokenStore(TokenStore tokenStore)
+    {
+        this.tokenStore = tokenStore;
+    }
+
+    /**
+     * Define o filtro de registration ids inválidos. Cada id com o erro {@link ErrorCode#NOT_REGISTERED} ou
+     * {@link ErrorCode#INVALID_REGISTRATION} é registrado no filtro e, antes de cada multicast, os ids do filtro não são enviados e
+     * ficam com o resultado {@link ErrorCode#DEAD_TOKEN}. As mensagens {@link Message#isDryRun() dry run}, usadas para validar
+     * registration ids, e os métodos {@code sendNoRetry} não usam o filtro.
+     *
+     * @param deadTokenFilter filtro compartilhado pelos senders, ou {@literal null} para enviar todos os ids.
+     */
+    public void setDeadTokenFilter(DeadTokenFilter deadTokenFilter)
+    {
+        this.deadTokenFilter = deadTokenFilter;
+    }
+
+    /**
+     * Obtém o scheduler das novas tentativas, também usado pelos componentes que agendam trabalho para este sender.
+     */
+    ScheduledExecutorService getScheduler()
+    {
+        return engine.getScheduler();
+    }
+
+    /**
+     * Define o transporte HTTP usado para enviar os requests. Por padrão os requests são feitos com {@link HttpURLConnection}, através
+     * de {@link #post(String, String, byte[], int)}.
+     *
+     * @param transport transporte dos requests, por exemplo {@link HttpClientTransport}.
+     */
+    public void setTransport(Transport transport)
+    {
+        this.transport = nonNull(transport);
+    }
+
     /**
      * Envia uma mensagem para um dispositivo, repetindo em caso de indisponibilidade.
      * <p>
@@ -103,42 +230,7 @@ public class Sender
      */
     public Result send(Message message, String registrationId, int retries) throws IOException
     {
-        int attempt = 0;
-        Result result;
-        int backoff = BACKOFF_INITIAL_DELAY;
-        boolean tryAgain;
-
-        do
-        {
-            attempt++;
-            if(LOGGER.isLoggable(Level.FINE))
-            {
-                LOGGER.log(Level.FINE, "Tentativa #{0} para enviar mensagem {1} para regIds {2}", new Object[]
-                {
-                    attempt, message, registrationId
-                });
-            }
-            result = sendNoRetry(message, registrationId);
-            tryAgain = result == null && attempt <= retries;
-
-            if(tryAgain)
-            {
-                int sleepTime = backoff / 2 + random.nextInt(backoff);
-                sleep(sleepTime);
-
-                if(2 * backoff < MAX_BACKOFF_DELAY)
-                {
-                    backoff *= 2;
-                }
-            }
-        }
-        while(tryAgain);
-
-        if(result == null)
-        {
-            throw new IOException("Não foi possível enviar mensagem depois " + attempt + " tentativas");
-        }
-        return result;
+        return await(() -> sendAsync(message, registrationId, retries));
     }
 
     /**
@@ -183,6 +275,9 @@ public class Sender
      * <p>
      * <strong>Nota: </strong> Este método utiliza exponencial back-off para repetir em caso de serviço indisponibilidade e, portanto, pode
      * bloquear o segmento de chamada por muitos segundos.
+     * <p>
+     * Listas com mais de {@link Constants#MAX_MULTICAST_SIZE} registration ids são divididas em lotes, consulte
+     * {@link #send(PreparedMessage, List, int)}.
      *
      * @param message mensagem a ser enviada.
      * @param regIds  registration id dos dispositivos que receberão a mensagem.
@@ -196,20 +291,709 @@ public class Sender
      */
     public MulticastResult send(Message message, List<String> regIds, int retries) throws IOException
     {
-        int attempt = 0;
-        boolean tryAgain;
-        MulticastResult multicastResult;
-        int backoff = BACKOFF_INITIAL_DELAY;
+        return send(new PreparedMessage(message), regIds, retries);
+    }
 
-        //Mapa de resultados por registration id, ele será atualizado depois de cada tentativa de enviar as mensagens
-        Map<String, Result> results = new HashMap<>();
-        List<String> unsentRegIds = new ArrayList<>(regIds);
-        List<Long> multicastIds = new ArrayList<>();
+    /**
+     * Envia uma mensagem já serializada para muitos dispositivos, repetindo em caso de indisponibilidade. Os campos da mensagem não
+     * são codificados novamente a cada tentativa. Consulte {@link #send(Message, List, int)} para mais informações.
+     * <p>
+     * Listas com mais de {@link Constants#MAX_MULTICAST_SIZE} registration ids são divididas em lotes, enviados simultaneamente
+     * (veja {@link #setParallelism(int)}). Os resultados são combinados na mesma ordem da entrada; o multicast id do primeiro lote é
+     * retornado em {@link MulticastResult#getMulticastId()} e os demais em {@link MulticastResult#getRetryMulticastIds()}.
+     *
+     * @param message mensagem a ser enviada.
+     * @param regIds  registration id dos dispositivos que receberão a mensagem.
+     * @param retries número de tentativas em caso de erros de indisponibilidade de serviço.
+     *
+     * @return resultado combinado de todas as solicitações feitas.
+     *
+     * @throws IllegalArgumentException se registrationIds é {@literal null} ou empty.
+     * @throws InvalidRequestException  se GCM não retornou status 200 ou 503.
+     * @throws IOException              se a mensagem não pôde ser enviada.
+     */
+    public MulticastResult send(PreparedMessage message, List<String> regIds, int retries) throws IOException
+    {
+        return await(() -> sendAsync(message, regIds, retries));
+    }
 
-        do
+    /**
+     * Envia uma mensagem para muitos dispositivos, repetindo em caso de indisponibilidade, e entrega o resultado de cada dispositivo
+     * ao listener em vez de guardá-lo. Consulte {@link #sendAsync(PreparedMessage, List, int, ResultListener)} para mais
+     * informações.
+     *
+     * @param message  mensagem a ser enviada.
+     * @param regIds   registration id dos dispositivos que receberão a mensagem.
+     * @param retries  número de tentativas em caso de erros de indisponibilidade de serviço.
+     * @param listener receptor do resultado de cada dispositivo.
+     *
+     * @return resumo de todas as solicitações feitas, sem os resultados individuais.
+     *
+     * @throws IllegalArgumentException se registrationIds é {@literal null} ou empty.
+     * @throws InvalidRequestException  se GCM não retornou status 200 ou 503.
+     * @throws IOException              se a mensagem não pôde ser enviada.
+     */
+    public MulticastResult send(Message message, List<String> regIds, int retries, ResultListener listener) throws IOException
+    {
+        return await(() -> sendAsync(new PreparedMessage(message), regIds, retries, nonNull(listener)));
+    }
+
+    /**
+     * Envia uma mensagem já serializada para muitos dispositivos, repetindo em caso de indisponibilidade, e entrega o resultado de
+     * cada dispositivo ao listener em vez de guardá-lo. Consulte {@link #sendAsync(PreparedMessage, List, int, ResultListener)}
+     * para mais informações.
+     *
+     * @param message  mensagem a ser enviada.
+     * @param regIds   registration id dos dispositivos que receberão a mensagem.
+     * @param retries  número de tentativas em caso de erros de indisponibilidade de serviço.
+     * @param listener receptor do resultado de cada dispositivo.
+     *
+     * @return resumo de todas as solicitações feitas, sem os resultados individuais.
+     *
+     * @throws IllegalArgumentException se registrationIds é {@literal null} ou empty.
+     * @throws InvalidRequestException  se GCM não retornou status 200 ou 503.
+     * @throws IOException              se a mensagem não pôde ser enviada.
+     */
+    public MulticastResult send(PreparedMessage message, List<String> regIds, int retries, ResultListener listener) throws IOException
+    {
+        return await(() -> sendAsync(message, regIds, retries, nonNull(listener)));
+    }
+
+    /**
+     * Envia uma campanha para muitos dispositivos, repetindo em caso de indisponibilidade, registrando o progresso no journal.
+     * Consulte {@link #sendAsync(PreparedMessage, List, int, CampaignJournal)} para mais informações.
+     *
+     * @param message mensagem a ser enviada.
+     * @param regIds  registration id dos dispositivos que receberão a mensagem.
+     * @param retries número de tentativas em caso de erros de indisponibilidade de serviço.
+     * @param journal journal da campanha.
+     *
+     * @return resultado combinado da campanha, incluindo os resultados registrados antes de uma retomada.
+     *
+     * @throws IllegalArgumentException se registrationIds é {@literal null} ou empty, ou o journal é de outra campanha.
+     * @throws InvalidRequestException  se GCM não retornou status 200 ou 503.
+     * @throws IOException              se a mensagem não pôde ser enviada ou o journal não pôde ser gravado.
+     */
+    public MulticastResult send(PreparedMessage message, List<String> regIds, int retries, CampaignJournal journal) throws IOException
+    {
+        return await(() -> sendAsync(message, regIds, retries, journal));
+    }
+
+    /**
+     * Inicia um envio assíncrono e aguarda o seu resultado, propagando a exceção original. Chamado de uma thread que executa uma
+     * tentativa (por exemplo, em um {@link ResultListener}), as tentativas do envio são executadas na própria thread, de modo que
+     * os envios síncronos não esgotam o executor do sender.
+     */
+    static <T> T await(Supplier<CompletableFuture<T>> send) throws IOException
+    {
+        try
+        {
+            return RetryEngine.await(send);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Envio interrompido");
+        }
+        catch(ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+
+            if(cause instanceof IOException)
+            {
+                throw (IOException)cause;
+            }
+            if(cause instanceof RuntimeException)
+            {
+                throw (RuntimeException)cause;
+            }
+            if(cause instanceof Error)
+            {
+                throw (Error)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Combina os resultados de vários lotes em um único {@link MulticastResult}, na ordem dos lotes.
+     *
+     * @param parts resultado de cada lote.
+     *
+     * @return resultado combinado.
+     */
+    private static MulticastResult merge(MulticastResult[] parts)
+    {
+        int success = 0, failure = 0, canonicalIds = 0;
+        List<Long> retryMulticastIds = new ArrayList<>();
+        Long retryAfter = null;
+
+        for(int i = 0; i < parts.length; i++)
         {
-            multicastResult = null;
-            attempt++;
+            MulticastResult part = parts[i];
+            success += part.getSuccess();
+            failure += part.getFailure();
+            canonicalIds += part.getCanonicalIds();
+
+            if(part.getRetryAfter() != null && (retryAfter == null || part.getRetryAfter() > retryAfter))
+            {
+                retryAfter = part.getRetryAfter();
+            }
+
+            if(i > 0)
+            {
+                retryMulticastIds.add(part.getMulticastId());
+            }
+            retryMulticastIds.addAll(part.getRetryMulticastIds());
+        }
+
+        MulticastResult.Builder builder = new MulticastResult.Builder(success, failure, canonicalIds, parts[0].getMulticastId())
+                .retryMulticastIds(retryMulticastIds)
+                .retryAfter(retryAfter);
+
+        for(MulticastResult part : parts)
+        {
+            builder.addResults(part);
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Constrói o resultado global de um lote a partir dos resultados de todas as tentativas.
+     *
+     * @param results      resultado final de cada posição do lote, na ordem original.
+     * @param multicastIds multicast id de cada tentativa.
+     * @param retryAfter   Retry-After da última tentativa, se ainda há mensagens não enviadas.
+     * @param keepResults  se os resultados individuais devem ser incluídos, ou apenas o resumo.
+     *
+     * @return resultado combinado.
+     */
+    private static MulticastResult buildMulticastResult(Result[] results, List<Long> multicastIds, Long retryAfter,
+            boolean keepResults)
+    {
+        // calcular resumo
+        int success = 0, failure = 0, canonicalIds = 0;
+
+        for(Result result : results)
+        {
+            if(result.getMessageId() != null)
+            {
+                success++;
+                if(result.getCanonicalRegistrationId() != null)
+                {
+                    canonicalIds++;
+                }
+            }
+            else
+            {
+                failure++;
+            }
+        }
+
+        // construir um novo objeto com o resultado global
+        // 0 se nenhum request foi aceito pelo GCM antes de a mensagem expirar
+        long multicastId = multicastIds.isEmpty() ? 0 : multicastIds.remove(0);
+        MulticastResult.Builder builder = new MulticastResult.Builder(success,
+                failure, canonicalIds, multicastId).retryMulticastIds(multicastIds).retryAfter(retryAfter);
+
+        // adicionar resultados, na mesma ordem que a entrada
+        if(keepResults)
+        {
+            for(Result result : results)
+            {
+                builder.addResult(result);
+            }
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Atualiza o status das mensagens enviadas para dispositivos e as posições que devem ser repetidas.
+     * <p>
+     * As posições pendentes são compactadas no próprio array {@code pending}, preservando a ordem.
+     *
+     * @param pending         posições do lote enviadas na última tentativa, na ordem do envio.
+     * @param count           número de posições válidas em {@code pending}.
+     * @param allResults      resultado de cada posição do lote, que será atualizado.
+     * @param multicastResult resultado do último envio multicast.
+     * @param retryQuota      se as mensagens que excederam a cota também devem ser repetidas.
+     *
+     * @return número de posições que devem ser repetidas.
+     */
+    private static int updateStatus(int[] pending, int count, Result[] allResults, MulticastResult multicastResult,
+            boolean retryQuota)
+    {
+        List<Result> results = multicastResult.getResults();
+
+        if(results.size() != count)
+        {
+            // nunca deveria acontecer, a menos que haja uma falha no algoritmo
+            throw new RuntimeException("Erro interno: tamanhos não correspondem." + "currentResults: " + results + "; unsent: " + count);
+        }
+
+        int unsent = 0;
+
+        for(int i = 0; i < count; i++)
+        {
+            Result result = results.get(i);
+            allResults[pending[i]] = result;
+            ErrorCode error = result.getErrorCode();
+
+            if(error != null && (error.isRetryable() || (retryQuota && error.isQuota())))
+            {
+                pending[unsent++] = pending[i];
+            }
+        }
+
+        return unsent;
+    }
+
+    /**
+     * Envia uma mensagem para um dispositivo de forma assíncrona, sem repetir em caso de indisponibilidade. Consulte
+     * {@link #sendAsync(Message, String, int)} para mais informações.
+     *
+     * @param message        mensagem a ser enviada.
+     * @param registrationId dispositivo em que a mensagem será enviada.
+     *
+     * @return future com o resultado do pedido.
+     *
+     * @throws IllegalArgumentException se registrationId é {@literal null}.
+     */
+    public CompletableFuture<Result> sendAsync(Message message, String registrationId)
+    {
+        return sendAsync(message, registrationId, 0);
+    }
+
+    /**
+     * Envia uma mensagem para um dispositivo de forma assíncrona, repetindo em caso de indisponibilidade.
+     * <p>
+     * A thread chamadora não é bloqueada: o request é feito no executor do sender (veja {@link #setExecutor(ExecutorService)}) e as
+     * novas tentativas são agendadas no scheduler (veja {@link #setScheduler(ScheduledExecutorService)}) em vez de dormir.
+     *
+     * @param message        mensagem a ser enviada.
+     * @param registrationId dispositivo em que a mensagem será enviada.
+     * @param retries        número de tentativas em caso de erros de indisponibilidade de serviço.
+     *
+     * @return future com o resultado do pedido; completa com {@link IOException} se a mensagem não pôde ser enviada ou
+     *         {@link InvalidRequestException} se GCM não retornou status 200.
+     *
+     * @throws IllegalArgumentException se registrationId é {@literal null}.
+     */
+    public CompletableFuture<Result> sendAsync(Message message, String registrationId, int retries)
+    {
+        nonNull(registrationId);
+
+        return sendAsync(message, Collections.singletonList(registrationId), retries).thenApply((multicastResult) ->
+        {
+            List<Result> results = multicastResult.getResults();
+
+            if(results.size() != 1)
+            {
+                throw new CompletionException(new IOException("Encontrado " + results.size() + " resultados em única solicitação multicast, esperado um."));
+            }
+
+            return results.get(0);
+        });
+    }
+
+    /**
+     * Envia uma mensagem para muitos dispositivos de forma assíncrona, sem repetir em caso de indisponibilidade. Consulte
+     * {@link #sendAsync(PreparedMessage, List, int)} para mais informações.
+     *
+     * @param message mensagem a ser enviada.
+     * @param regIds  registration id dos dispositivos que receberão a mensagem.
+     *
+     * @return future com o resultado combinado de todas as solicitações feitas.
+     *
+     * @throws IllegalArgumentException se registrationIds é {@literal null} ou empty.
+     */
+    public CompletableFuture<MulticastResult> sendAsync(Message message, List<String> regIds)
+    {
+        return sendAsync(message, regIds, 0);
+    }
+
+    /**
+     * Envia uma mensagem para muitos dispositivos de forma assíncrona, repetindo em caso de indisponibilidade. Consulte
+     * {@link #sendAsync(PreparedMessage, List, int)} para mais informações.
+     *
+     * @param message mensagem a ser enviada.
+     * @param regIds  registration id dos dispositivos que receberão a mensagem.
+     * @param retries número de tentativas em caso de erros de indisponibilidade de serviço.
+     *
+     * @return future com o resultado combinado de todas as solicitações feitas.
+     *
+     * @throws IllegalArgumentException se registrationIds é {@literal null} ou empty.
+     */
+    public CompletableFuture<MulticastResult> sendAsync(Message message, List<String> regIds, int retries)
+    {
+        return sendAsync(new PreparedMessage(message), regIds, retries);
+    }
+
+    /**
+     * Envia uma mensagem já serializada para muitos dispositivos de forma assíncrona, repetindo em caso de indisponibilidade.
+     * <p>
+     * Equivalente a {@link #send(PreparedMessage, List, int)}, mas a thread chamadora não é bloqueada: os requests são feitos no
+     * executor do sender, no máximo {@link #setParallelism(int)} lotes por vez, e o back-off exponencial entre as tentativas é
+     * agendado no scheduler do sender, liberando as threads enquanto a próxima tentativa aguarda.
+     * <p>
+     * Se a mensagem tem time to live, ele é contado a partir desta chamada: cada tentativa envia apenas o tempo que ainda resta
+     * ({@link Message#getRemainingTimeToLive(long)}), e as posições ainda não enviadas quando ele termina deixam de ser repetidas e
+     * ficam com o resultado {@link ErrorCode#EXPIRED}. A mesma mensagem pode ser reutilizada em vários envios.
+     *
+     * @param message mensagem a ser enviada.
+     * @param regIds  registration id dos dispositivos que receberão a mensagem.
+     * @param retries número de tentativas em caso de erros de indisponibilidade de serviço.
+     *
+     * @return future com o resultado combinado de todas as solicitações feitas; completa com {@link IOException} se a mensagem não
+     *         pôde ser enviada.
+     *
+     * @throws IllegalArgumentException se registrationIds é {@literal null} ou empty.
+     */
+    public CompletableFuture<MulticastResult> sendAsync(PreparedMessage message, List<String> regIds, int retries)
+    {
+        return sendAsync(message, regIds, retries, null, null, System.currentTimeMillis(), null);
+    }
+
+    /**
+     * Envia uma mensagem já serializada para muitos dispositivos de forma assíncrona, repetindo em caso de indisponibilidade, e
+     * entrega o resultado de cada dispositivo ao listener em vez de guardá-lo.
+     * <p>
+     * O listener é chamado assim que cada lote termina, com o resultado final de cada posição do lote, e os resultados não são
+     * guardados: o {@link MulticastResult} do future contém apenas os contadores e os multicast ids, e
+     * {@link MulticastResult#getResults()} é vazio. A memória usada é proporcional ao tamanho e ao número de lotes simultâneos, e não
+     * ao número de dispositivos. Consulte {@link #sendAsync(PreparedMessage, List, int)} para mais informações.
+     *
+     * @param message  mensagem a ser enviada.
+     * @param regIds   registration id dos dispositivos que receberão a mensagem.
+     * @param retries  número de tentativas em caso de erros de indisponibilidade de serviço.
+     * @param listener receptor do resultado de cada dispositivo, ou {@literal null} para guardar os resultados no
+     *                 {@link MulticastResult}.
+     *
+     * @return future com o resumo de todas as solicitações feitas; completa com {@link IOException} se a mensagem não pôde ser
+     *         enviada.
+     *
+     * @throws IllegalArgumentException se registrationIds é {@literal null} ou empty.
+     */
+    public CompletableFuture<MulticastResult> sendAsync(PreparedMessage message, List<String> regIds, int retries,
+            ResultListener listener)
+    {
+        return sendAsync(message, regIds, retries, listener, null, System.currentTimeMillis());
+    }
+
+    /**
+     * Envia uma mensagem já serializada para muitos dispositivos de forma assíncrona, deixando de repetir as posições que não são
+     * mais necessárias.
+     *
+     * @param message    mensagem a ser enviada.
+     * @param regIds     registration id dos dispositivos que receberão a mensagem.
+     * @param retries    número de tentativas em caso de erros de indisponibilidade de serviço.
+     * @param listener   receptor do resultado de cada dispositivo, ou {@literal null}.
+     * @param superseded indica, antes de cada nova tentativa, se a posição de {@code regIds} foi substituída por um envio mais novo
+     *                   e não deve ser repetida; ela fica com o resultado da última tentativa. Pode ser {@literal null}.
+     * @param startedAt  instante em que os envios foram pedidos, a partir do qual o time to live é contado, em milissegundos desde a
+     *                   época.
+     *
+     * @return future com o resultado combinado de todas as solicitações feitas.
+     */
+    CompletableFuture<MulticastResult> sendAsync(PreparedMessage message, List<String> regIds, int retries,
+            ResultListener listener, IntPredicate superseded, long startedAt)
+    {
+        return sendAsync(message, regIds, retries, listener, superseded, startedAt, null);
+    }
+
+    /**
+     * Envia uma campanha para muitos dispositivos de forma assíncrona, repetindo em caso de indisponibilidade, e registra o
+     * progresso no journal para que ela possa ser retomada depois de uma falha.
+     * <p>
+     * Antes de cada tentativa as posições enviadas são registradas e, depois do response, os seus resultados e o multicast id;
+     * ambos são gravados em disco antes do envio prosseguir. Se o journal já tem registros, as posições com resultado final são
+     * puladas e os seus resultados e multicast ids incluídos no {@link MulticastResult}, de modo que a campanha continua de onde
+     * parou. O time to live da mensagem é contado a partir do início da campanha ({@link CampaignJournal#getStartedAt()}), também
+     * depois de uma retomada. Consulte {@link #sendAsync(PreparedMessage, List, int)} para mais informações.
+     *
+     * @param message mensagem a ser enviada.
+     * @param regIds  registration id dos dispositivos que receberão a mensagem.
+     * @param retries número de tentativas em caso de erros de indisponibilidade de serviço.
+     * @param journal journal da campanha.
+     *
+     * @return future com o resultado combinado da campanha; completa com {@link IOException} se a mensagem não pôde ser enviada ou
+     *         o journal não pôde ser gravado.
+     *
+     * @throws IllegalArgumentException se registrationIds é {@literal null} ou empty, ou o journal é de outra campanha.
+     */
+    public CompletableFuture<MulticastResult> sendAsync(PreparedMessage message, List<String> regIds, int retries,
+            CampaignJournal journal)
+    {
+        if(!nonNull(journal).matches(nonNull(message), nonNull(regIds)))
+        {
+            throw new IllegalArgumentException("journal pertence a outra campanha");
+        }
+
+        return sendAsync(message, regIds, retries, null, null, journal.getStartedAt(), journal);
+    }
+
+    private CompletableFuture<MulticastResult> sendAsync(PreparedMessage message, List<String> regIds, int retries,
+            ResultListener listener, IntPredicate superseded, long startedAt, CampaignJournal journal)
+    {
+        nonNull(message);
+
+        if(nonNull(regIds).isEmpty())
+        {
+            throw new IllegalArgumentException("registrationIds não pode estar vazio");
+        }
+
+        // as tentativas acessam os ids por posição
+        if(!(regIds instanceof RandomAccess))
+        {
+            regIds = new ArrayList<>(regIds);
+        }
+
+        int size = regIds.size();
+        int chunks = (size + MAX_MULTICAST_SIZE - 1) / MAX_MULTICAST_SIZE;
+        List<MulticastTask> tasks = new ArrayList<>(chunks);
+
+        for(int from = 0; from < size; from += MAX_MULTICAST_SIZE)
+        {
+            tasks.add(new MulticastTask(message, regIds.subList(from, Math.min(from + MAX_MULTICAST_SIZE, size)), from, retries,
+                    listener, superseded, startedAt, journal));
+        }
+
+        // no máximo parallelism lotes em andamento, cada lote concluído inicia o próximo
+        int initial = Math.min(parallelism, chunks);
+        AtomicInteger nextChunk = new AtomicInteger(initial);
+
+        for(int i = 0; i < initial; i++)
+        {
+            startChain(tasks, i, nextChunk);
+        }
+
+        if(chunks == 1)
+        {
+            return tasks.get(0).future;
+        }
+
+        CompletableFuture<?>[] futures = tasks.stream().map((task) -> task.future).toArray(CompletableFuture<?>[]::new);
+
+        CompletableFuture<MulticastResult> result = CompletableFuture.allOf(futures).thenApply((ignored) ->
+        {
+            MulticastResult[] parts = new MulticastResult[chunks];
+
+            for(int i = 0; i < chunks; i++)
+            {
+                parts[i] = tasks.get(i).future.join();
+            }
+
+            return merge(parts);
+        });
+
+        // cancelar o resultado interrompe as novas tentativas de todos os lotes
+        result.whenComplete((ignored, error) ->
+        {
+            if(result.isCancelled())
+            {
+                tasks.forEach((task) -> task.future.cancel(false));
+            }
+        });
+
+        return result;
+    }
+
+    private void startChain(List<MulticastTask> tasks, int index, AtomicInteger nextChunk)
+    {
+        MulticastTask task = tasks.get(index);
+
+        task.future.whenComplete((result, error) ->
+        {
+            int next = nextChunk.getAndIncrement();
+
+            if(next < tasks.size())
+            {
+                startChain(tasks, next, nextChunk);
+            }
+        });
+
+        task.start();
+    }
+
+    /**
+     * Envio de um lote: cada execução é uma tentativa, e os registration ids que falharam por indisponibilidade são repetidos
+     * conforme a política de back-off.
+     */
+    private final class MulticastTask extends RetryEngine.Task<MulticastResult>
+    {
+        private final PreparedMessage message;
+        private final List<String> regIds;
+        private final int offset;
+        private final int retries;
+        private final ResultListener listener;
+        private final IntPredicate superseded;
+        // instante a partir do qual o time to live da mensagem é contado
+        private final long startedAt;
+        private final CampaignJournal journal;
+
+        //Resultado de cada posição do lote, atualizado depois de cada tentativa de enviar as mensagens
+        private final Result[] results;
+        //Posições ainda não enviadas, as primeiras unsent são válidas
+        private final int[] pending;
+        private int unsent;
+        private final List<Long> multicastIds = new ArrayList<>();
+        private final AdaptiveRateLimiter limiter = rateLimiter;
+        // mensagens de alta prioridade não aguardam na fila do limitador nem na do executor
+        private final boolean priority;
+        private final TokenStore store = tokenStore;
+        private final DeadTokenFilter filter = deadTokenFilter;
+        //Registration ids enviados, com os canonical ids conhecidos no lugar dos antigos
+        private final List<String> sentIds;
+        private IOException lastError;
+
+        MulticastTask(PreparedMessage message, List<String> regIds, int offset, int retries, ResultListener listener,
+                IntPredicate superseded, long startedAt, CampaignJournal journal)
+        {
+            super(engine);
+            this.message = message;
+            this.regIds = regIds;
+            this.offset = offset;
+            this.retries = retries;
+            this.listener = listener;
+            this.superseded = superseded;
+            this.startedAt = startedAt;
+            this.journal = journal;
+            this.priority = Constants.MESSAGE_PRIORITY_HIGH.equals(message.getMessage().getPriority());
+            this.results = new Result[regIds.size()];
+            this.pending = new int[regIds.size()];
+            this.unsent = pending.length;
+            this.sentIds = store == null ? regIds : canonicalIds(regIds);
+
+            for(int i = 0; i < pending.length; i++)
+            {
+                pending[i] = i;
+            }
+
+            if(journal != null)
+            {
+                restore();
+            }
+
+            // uma validação (dry run) sempre consulta o GCM
+            if(filter != null && !Boolean.TRUE.equals(message.getMessage().isDryRun()))
+            {
+                removeDead();
+            }
+        }
+
+        /**
+         * Troca os registration ids pelos canonical ids conhecidos.
+         */
+        private List<String> canonicalIds(List<String> regIds)
+        {
+            List<String> ids = new ArrayList<>(regIds.size());
+
+            for(String regId : regIds)
+            {
+                ids.add(store.getCanonical(regId));
+            }
+
+            return ids;
+        }
+
+        /**
+         * Retira das posições pendentes os ids que estão no filtro de ids inválidos.
+         */
+        private void removeDead()
+        {
+            int kept = 0;
+
+            for(int i = 0; i < unsent; i++)
+            {
+                int position = pending[i];
+
+                if(filter.mightContain(sentIds.get(position)))
+                {
+                    results[position] = Result.DEAD_TOKEN;
+                }
+                else
+                {
+                    pending[kept++] = position;
+                }
+            }
+
+            if(kept < unsent)
+            {
+                LOGGER.log(Level.FINE, "{0} registration ids inválidos não enviados", unsent - kept);
+            }
+            unsent = kept;
+        }
+
+        /**
+         * Retoma o lote a partir do journal: as posições com resultado final não são enviadas novamente.
+         */
+        private void restore()
+        {
+            multicastIds.addAll(journal.getMulticastIds(offset));
+            int kept = 0;
+
+            for(int i = 0; i < unsent; i++)
+            {
+                int position = pending[i];
+
+                // o resultado de uma posição que será repetida é o da última tentativa registrada, se houve
+                results[position] = journal.getResult(offset + position);
+
+                if(!journal.isCompleted(offset + position))
+                {
+                    pending[kept++] = position;
+                }
+            }
+
+            unsent = kept;
+        }
+
+        @Override
+        boolean isPriority()
+        {
+            return priority;
+        }
+
+        @Override
+        long reserve()
+        {
+            if(limiter == null)
+            {
+                return 0;
+            }
+
+            return priority ? limiter.reservePriority(unsent) : limiter.reserve(unsent);
+        }
+
+        @Override
+        void attempt(int attempt)
+        {
+            if(unsent == 0)
+            {
+                // lote concluído antes da retomada
+                complete(null);
+                return;
+            }
+
+            if(superseded != null && attempt > 1 && removeSuperseded())
+            {
+                // nada mais a repetir
+                complete(null);
+                return;
+            }
+
+            if(message.getMessage().isExpired(startedAt))
+            {
+                expire(attempt);
+                return;
+            }
+
+            MulticastResult multicastResult = null;
+            Long retryAfter = null;
+            boolean tryAgain;
+            List<String> unsentRegIds = unsent == regIds.size() ? sentIds : new PendingList(sentIds, pending, unsent);
 
             if(LOGGER.isLoggable(Level.FINE))
             {
@@ -218,14 +1002,40 @@ public class Sender
                     attempt, message, unsentRegIds
                 });
             }
+            if(journal != null && !record(0, null))
+            {
+                return;
+            }
             try
             {
-                multicastResult = sendNoRetry(message, unsentRegIds);
+                // o time to live enviado desconta o tempo já gasto na fila e nas tentativas anteriores
+                Integer timeToLive = message.getMessage().getRemainingTimeToLive(startedAt);
+                multicastResult = sendNoRetry(timeToLive == null ? WRITER.get().writeRequest(message, unsentRegIds)
+                        : WRITER.get().writeRequest(message, unsentRegIds, timeToLive));
+            }
+            catch(InvalidRequestException e)
+            {
+                if(e.getHttpStatusCode() < 500)
+                {
+                    // erro do request, uma nova tentativa teria o mesmo resultado
+                    future.completeExceptionally(e);
+                    return;
+                }
+                // 5xx, respeitar o Retry-After se informado
+                LOGGER.log(Level.FINEST, "InvalidRequestException na tentativa " + attempt, e);
+                retryAfter = e.getRetryAfter();
+                lastError = e;
+
+                if(limiter != null && e.getHttpStatusCode() == 503)
+                {
+                    limiter.onThrottle(retryAfter);
+                }
             }
             catch(IOException e)
             {
                 // sem necessidade de aviso desde já exceção pode ser registrada
                 LOGGER.log(Level.FINEST, "IOException na tentativa " + attempt, e);
+                lastError = e;
             }
             if(multicastResult != null)
             {
@@ -235,9 +1045,46 @@ public class Sender
                     attempt, multicastId
                 });
 
+                // sem um resultado por id enviado não é possível associá-los; nada é registrado no journal, no dicionário ou no
+                // filtro, que guardaria ids errados permanentemente
+                if(multicastResult.getResults().size() != unsent)
+                {
+                    future.completeExceptionally(new IOException("Encontrado " + multicastResult.getResults().size()
+                            + " resultados em uma solicitação multicast de " + unsent + " registration ids"));
+                    return;
+                }
+
+                if(journal != null && !record(multicastId, multicastResult.getResults()))
+                {
+                    return;
+                }
+
+                if(store != null)
+                {
+                    learn(multicastResult);
+                }
+
+                if(filter != null)
+                {
+                    addDead(multicastResult);
+                }
+
                 multicastIds.add(multicastId);
-                unsentRegIds = updateStatus(unsentRegIds, results, multicastResult);
-                tryAgain = !unsentRegIds.isEmpty() && attempt <= retries;
+                unsent = updateStatus(pending, unsent, results, multicastResult, limiter != null);
+                retryAfter = multicastResult.getRetryAfter();
+
+                if(limiter != null)
+                {
+                    if(retryAfter != null || hasQuotaExceeded(multicastResult))
+                    {
+                        limiter.onThrottle(retryAfter);
+                    }
+                    else
+                    {
+                        limiter.onSuccess();
+                    }
+                }
+                tryAgain = unsent > 0 && attempt <= retries;
             }
             else
             {
@@ -246,92 +1093,244 @@ public class Sender
 
             if(tryAgain)
             {
-                int sleepTime = backoff / 2 + random.nextInt(backoff);
-                sleep(sleepTime);
+                retry(retryAfter);
+            }
+            else if(multicastIds.isEmpty())
+            {
+                // todas as mensagens JSON falhou devido a indisponibilidade GCM
+                future.completeExceptionally(new IOException("Não foi possível postar solicitações JSON para GCM depois de " + attempt + " tentativas", lastError));
+            }
+            else
+            {
+                complete(unsent == 0 ? null : retryAfter);
+            }
+        }
 
-                if(2 * backoff < MAX_BACKOFF_DELAY)
+        private void complete(Long retryAfter)
+        {
+            // posições retomadas do journal que não chegaram a ter resposta nesta execução
+            for(int i = 0; i < unsent; i++)
+            {
+                if(results[pending[i]] == null)
                 {
-                    backoff *= 2;
+                    results[pending[i]] = Result.UNAVAILABLE;
                 }
             }
+
+            if(store != null)
+            {
+                reportCanonicalIds();
+            }
+
+            if(listener != null)
+            {
+                report();
+            }
+            future.complete(buildMulticastResult(results, multicastIds, retryAfter, listener == null));
         }
-        while(tryAgain);
 
-        if(multicastIds.isEmpty())
+        /**
+         * Descarta as posições pendentes porque o time to live da mensagem terminou; elas ficam com o resultado
+         * {@link ErrorCode#EXPIRED}.
+         */
+        private void expire(int attempt)
         {
-            // todas as mensagens JSON falhou devido a indisponibilidade GCM
-            throw new IOException("Não foi possível postar solicitações JSON para GCM depois de " + attempt + " tentativas");
+            LOGGER.log(Level.FINE, "Time to live da mensagem {0} terminou antes da tentativa #{1}, {2} regIds descartados",
+                    new Object[]
+                    {
+                        message, attempt, unsent
+                    });
+
+            if(journal != null && !record(0, Collections.nCopies(unsent, Result.EXPIRED)))
+            {
+                return;
+            }
+
+            for(int i = 0; i < unsent; i++)
+            {
+                results[pending[i]] = Result.EXPIRED;
+            }
+
+            unsent = 0;
+            complete(null);
         }
 
-        // calcular resumo
-        int success = 0, failure = 0, canonicalIds = 0;
+        /**
+         * Registra no journal as posições pendentes: antes da tentativa, se {@code attemptResults} é {@literal null}, ou os seus
+         * resultados. Se o journal não pôde ser gravado o lote falha, pois o progresso não poderia ser retomado.
+         *
+         * @return {@literal false} se o lote falhou.
+         */
+        private boolean record(long multicastId, List<Result> attemptResults)
+        {
+            try
+            {
+                if(attemptResults == null)
+                {
+                    journal.dispatched(offset, pending, unsent);
+                }
+                else
+                {
+                    journal.recorded(offset, multicastId, pending, unsent, attemptResults);
+                }
+                return true;
+            }
+            catch(IOException e)
+            {
+                future.completeExceptionally(e);
+                return false;
+            }
+        }
 
-        for(Result result : results.values())
+        /**
+         * Retira das posições pendentes as que foram substituídas por um envio mais novo. Posições que ainda não têm resultado
+         * continuam pendentes.
+         *
+         * @return {@literal true} se não restou nenhuma posição pendente.
+         */
+        private boolean removeSuperseded()
         {
-            if(result.getMessageId() != null)
+            int kept = 0;
+
+            for(int i = 0; i < unsent; i++)
             {
-                success++;
-                if(result.getCanonicalRegistrationId() != null)
+                if(results[pending[i]] == null || !superseded.test(offset + pending[i]))
                 {
-                    canonicalIds++;
+                    pending[kept++] = pending[i];
                 }
             }
-            else
+
+            unsent = kept;
+            return unsent == 0;
+        }
+
+        /**
+         * Registra no dicionário os canonical ids retornados para as posições pendentes.
+         */
+        private void learn(MulticastResult multicastResult)
+        {
+            List<Result> attemptResults = multicastResult.getResults();
+
+            for(int i = 0; i < unsent; i++)
             {
-                failure++;
+                String canonicalId = attemptResults.get(i).getCanonicalRegistrationId();
+
+                if(canonicalId != null)
+                {
+                    int position = pending[i];
+                    store.putCanonical(sentIds.get(position), canonicalId);
+
+                    // o id original também aponta direto para o canonical id mais novo
+                    if(sentIds.get(position) != regIds.get(position))
+                    {
+                        store.putCanonical(regIds.get(position), canonicalId);
+                    }
+                }
             }
         }
 
-        // construir um novo objeto com o resultado global
-        long multicastId = multicastIds.remove(0);
-        MulticastResult.Builder builder = new MulticastResult.Builder(success,
-                failure, canonicalIds, multicastId).retryMulticastIds(multicastIds);
+        /**
+         * Registra no filtro os ids pendentes que o GCM informou como inválidos.
+         */
+        private void addDead(MulticastResult multicastResult)
+        {
+            List<Result> attemptResults = multicastResult.getResults();
 
-        // adicionar resultados, na mesma ordem que a entrada
-        regIds.stream().map((regId) -> results.get(regId)).forEach((result)
-                -> 
+            for(int i = 0; i < unsent; i++)
+            {
+                ErrorCode errorCode = attemptResults.get(i).getErrorCode();
+
+                // apenas os erros do próprio id; MismatchSenderId e MissingRegistration indicam um problema do sender ou do
+                // request, e marcariam ids válidos
+                if(errorCode == ErrorCode.NOT_REGISTERED || errorCode == ErrorCode.INVALID_REGISTRATION)
                 {
-                    builder.addResult(result);
-        });
+                    filter.add(sentIds.get(pending[i]));
+                }
+            }
+        }
 
-        return builder.build();
+        /**
+         * Informa o canonical id nos resultados das posições enviadas com um id trocado pelo dicionário, como o GCM faria se o id
+         * antigo tivesse sido enviado.
+         */
+        private void reportCanonicalIds()
+        {
+            for(int i = 0; i < results.length; i++)
+            {
+                Result result = results[i];
+
+                if(sentIds.get(i) != regIds.get(i) && result != null && result.getMessageId() != null
+                        && result.getCanonicalRegistrationId() == null)
+                {
+                    results[i] = new Result.Builder().messageId(result.getMessageId()).canonicalRegistrationId(sentIds.get(i))
+                            .build();
+                }
+            }
+        }
+
+        private boolean hasQuotaExceeded(MulticastResult multicastResult)
+        {
+            if(multicastResult.getFailure() == 0)
+            {
+                return false;
+            }
+
+            int size = multicastResult.getTotal();
+
+            for(int i = 0; i < size; i++)
+            {
+                if(multicastResult.getErrorCode(i) == ErrorCode.QUOTA_EXCEEDED)
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private void report()
+        {
+            synchronized(listener)
+            {
+                for(int i = 0; i < results.length; i++)
+                {
+                    listener.onResult(regIds.get(i), results[i]);
+                }
+            }
+        }
     }
 
     /**
-     * Atualiza o status das mensagens enviadas para dispositivos ea lista de dispositivos que devem ser repetida.
-     *
-     * @param unsentRegIds    lista de dispositivos que ainda estão pendentes uma atualização.
-     * @param allResults      map do estado que será atualizado.
-     * @param multicastResult resultado do último envio multicast.
-     *
-     * @return versão atualizada de dispositivos que devem ser repetida.
+     * Visão dos registration ids pendentes de um lote, sem copiar os ids.
      */
-    private List<String> updateStatus(List<String> unsentRegIds, Map<String, Result> allResults, MulticastResult multicastResult)
+    private static final class PendingList extends AbstractList<String> implements RandomAccess
     {
-        List<Result> results = multicastResult.getResults();
+        private final List<String> regIds;
+        private final int[] positions;
+        private final int size;
 
-        if(results.size() != unsentRegIds.size())
+        PendingList(List<String> regIds, int[] positions, int size)
         {
-            // nunca deveria acontecer, a menos que haja uma falha no algoritmo
-            throw new RuntimeException("Erro interno: tamanhos não correspondem." + "currentResults: " + results + "; unsentRegIds: " + unsentRegIds);
+            this.regIds = regIds;
+            this.positions = positions;
+            this.size = size;
         }
 
-        List<String> newUnsentRegIds = new ArrayList<>();
-
-        for(int i = 0; i < unsentRegIds.size(); i++)
+        @Override
+        public String get(int index)
         {
-            String regId = unsentRegIds.get(i);
-            Result result = results.get(i);
-            allResults.put(regId, result);
-            String error = result.getErrorCodeName();
-
-            if(error != null && (error.equals(Constants.ERROR_UNAVAILABLE) || error.equals(Constants.ERROR_INTERNAL_SERVER_ERROR)))
+            if(index >= size)
             {
-                newUnsentRegIds.add(regId);
+                throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
             }
+            return regIds.get(positions[index]);
         }
 
-        return newUnsentRegIds;
+        @Override
+        public int size()
+        {
+            return size;
+        }
     }
 
     /**
@@ -354,67 +1353,62 @@ public class Sender
             throw new IllegalArgumentException("registrationIds não pode estar vazio");
         }
 
-        Map<Object, Object> jsonRequest = new HashMap<>();
-        setJsonField(jsonRequest, PARAM_PRIORITY, message.getPriority());
-        setJsonField(jsonRequest, PARAM_TIME_TO_LIVE, message.getTimeToLive());
-        setJsonField(jsonRequest, PARAM_COLLAPSE_KEY, message.getCollapseKey());
-        setJsonField(jsonRequest, PARAM_RESTRICTED_PACKAGE_NAME, message.getRestrictedPackageName());
-        setJsonField(jsonRequest, PARAM_DELAY_WHILE_IDLE, message.isDelayWhileIdle());
-        setJsonField(jsonRequest, PARAM_DRY_RUN, message.isDryRun());
-        jsonRequest.put(JSON_REGISTRATION_IDS, registrationIds);
-        Map<String, String> payload = message.getData();
+        return sendNoRetry(WRITER.get().writeRequest(message, registrationIds));
+    }
 
-        if(!payload.isEmpty())
+    /**
+     * Envia uma mensagem já serializada sem repetir em caso de indisponibilidade do serviço. Apenas os registration ids são
+     * codificados. Consulte {@link #sendNoRetry(Message, List)} para mais informações.
+     *
+     * @param message         mensagem a ser enviada.
+     * @param registrationIds registration id do dispositivo que recebera a mensagem.
+     *
+     * @return multicast resulta se a mensagem foi enviada com sucesso, {@literal null} se ele falhou, mas poderia ser repetida.
+     *
+     * @throws IllegalArgumentException se registrationIds é {@literal null} ou empty.
+     * @throws InvalidRequestException  se GCM não retornar status 200.
+     * @throws IOException              se houve um erro de parsing JSON.
+     */
+    public MulticastResult sendNoRetry(PreparedMessage message, List<String> registrationIds) throws IOException
+    {
+        if(nonNull(registrationIds).isEmpty())
         {
-            jsonRequest.put(JSON_PAYLOAD, payload);
+            throw new IllegalArgumentException("registrationIds não pode estar vazio");
         }
 
-        if(message.getNotification() != null)
-        {
-            Notification notification = message.getNotification();
-            Map<Object, Object> nMap = new HashMap<>();
+        return sendNoRetry(WRITER.get().writeRequest(nonNull(message), registrationIds));
+    }
 
-            if(notification.getBadge() != null)
-            {
-                setJsonField(nMap, JSON_NOTIFICATION_BADGE, notification.getBadge().toString());
-            }
-            setJsonField(nMap, JSON_NOTIFICATION_BODY, notification.getBody());
-            setJsonField(nMap, JSON_NOTIFICATION_BODY_LOC_ARGS, notification.getBodyLocArgs());
-            setJsonField(nMap, JSON_NOTIFICATION_BODY_LOC_KEY, notification.getBodyLocKey());
-            setJsonField(nMap, JSON_NOTIFICATION_CLICK_ACTION, notification.getClickAction());
-            setJsonField(nMap, JSON_NOTIFICATION_COLOR, notification.getColor());
-            setJsonField(nMap, JSON_NOTIFICATION_ICON, notification.getIcon());
-            setJsonField(nMap, JSON_NOTIFICATION_SOUND, notification.getSound());
-            setJsonField(nMap, JSON_NOTIFICATION_TAG, notification.getTag());
-            setJsonField(nMap, JSON_NOTIFICATION_TITLE, notification.getTitle());
-            setJsonField(nMap, JSON_NOTIFICATION_TITLE_LOC_ARGS, notification.getTitleLocArgs());
-            setJsonField(nMap, JSON_NOTIFICATION_TITLE_LOC_KEY, notification.getTitleLocKey());
-            jsonRequest.put(JSON_NOTIFICATION, nMap);
+    private MulticastResult sendNoRetry(JsonRequestWriter writer) throws IOException
+    {
+        if(LOGGER.isLoggable(Level.FINEST))
+        {
+            LOGGER.log(Level.FINEST, "JSON request: {0}", new String(writer.buffer(), 0, writer.length(), UTF8));
         }
-
-        String requestBody = JSONValue.toJSONString(jsonRequest);
-        LOGGER.log(Level.FINEST, "JSON request: {0}", requestBody);
-        HttpURLConnection conn;
-        int status;
+        Transport.Response response;
 
         try
         {
-            conn = post(GCM_SEND_ENDPOINT, "application/json", requestBody);
-            status = conn.getResponseCode();
+            response = transport.post(GCM_SEND_ENDPOINT, "application/json", "key=" + key, writer.buffer(), writer.length());
         }
         catch(IOException e)
         {
             LOGGER.log(Level.FINE, "IOException postagem para GCM", e);
             return null;
         }
+        finally
+        {
+            writer.trim(MAX_WRITER_CAPACITY);
+        }
 
+        int status = response.getStatus();
         String responseBody;
 
         if(status != 200)
         {
             try
             {
-                responseBody = getAndClose(conn.getErrorStream());
+                responseBody = getAndClose(response.getBody());
                 LOGGER.log(Level.FINEST, "JSON error response: {0}", responseBody);
             }
             catch(IOException e)
@@ -424,68 +1418,81 @@ public class Sender
                 LOGGER.log(Level.FINE, "Exception reading response: ", e);
             }
 
-            throw new InvalidRequestException(status, responseBody);
+            throw new InvalidRequestException(status, responseBody, getRetryAfter(response));
+        }
+
+        InputStream in = response.getBody();
+
+        if(in == null)
+        {
+            LOGGER.log(Level.WARNING, "Response sem body");
+            return null;
         }
+
         try
         {
-            responseBody = getAndClose(conn.getInputStream());
+            MulticastResult multicastResult = new JsonResponseParser(in).parseMulticastResult()
+                    .retryAfter(getRetryAfter(response))
+                    .build();
+            LOGGER.log(Level.FINEST, "JSON response: {0}", multicastResult);
+            return multicastResult;
+        }
+        catch(CustomParserException e)
+        {
+            throw newIoException(e);
         }
         catch(IOException e)
         {
             LOGGER.log(Level.WARNING, "IOException reading response", e);
             return null;
         }
+        finally
+        {
+            close(in);
+        }
+    }
+
+    /**
+     * Lê o header Retry-After, que pode conter um número de segundos ou uma data HTTP.
+     *
+     * @return atraso em milissegundos, ou {@literal null} se ausente ou inválido.
+     */
+    private static Long getRetryAfter(Transport.Response response)
+    {
+        String value = response.getHeader(HEADER_RETRY_AFTER);
+
+        if(value == null)
+        {
+            return null;
+        }
 
-        LOGGER.log(Level.FINEST, "JSON response: {0}", responseBody);
-        JSONParser parser = new JSONParser();
-        JSONObject jsonResponse;
+        value = value.trim();
 
         try
         {
-            jsonResponse = (JSONObject)parser.parse(responseBody);
-            int success = getNumber(jsonResponse, JSON_SUCCESS).intValue();
-            int failure = getNumber(jsonResponse, JSON_FAILURE).intValue();
-            int canonicalIds = getNumber(jsonResponse, JSON_CANONICAL_IDS).intValue();
-            long multicastId = getNumber(jsonResponse, JSON_MULTICAST_ID).longValue();
-            MulticastResult.Builder builder = new MulticastResult.Builder(success, failure, canonicalIds, multicastId);
-
-            @SuppressWarnings("unchecked")
-            List<Map<String, Object>> results = (List<Map<String, Object>>)jsonResponse.get(JSON_RESULTS);
-
-            if(results != null)
-            {
-                results.stream().map((jsonResult)
-                        -> 
-                        {
-                            String messageId = (String)jsonResult.get(JSON_MESSAGE_ID);
-                            String canonicalRegId = (String)jsonResult.get(TOKEN_CANONICAL_REG_ID);
-                            String error = (String)jsonResult.get(JSON_ERROR);
-
-                            Result result = new Result.Builder()
-                                    .messageId(messageId)
-                                    .canonicalRegistrationId(canonicalRegId)
-                                    .errorCode(error)
-                                    .build();
-                            return result;
-
-                }).forEach((result)
-                        -> 
-                        {
-                            builder.addResult(result);
-                });
-            }
-            return builder.build();
+            return Math.max(0, Long.parseLong(value)) * 1000;
+        }
+        catch(NumberFormatException e)
+        {
+            // não é um número de segundos, tentar como data
+        }
+
+        try
+        {
+            long date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            return Math.max(0, date - System.currentTimeMillis());
         }
-        catch(ParseException | CustomParserException e)
+        catch(DateTimeParseException e)
         {
-            throw newIoException(responseBody, e);
+            LOGGER.log(Level.FINE, "Retry-After inválido: {0}", value);
+            return null;
         }
     }
 
-    private IOException newIoException(String responseBody, Exception e)
+    private IOException newIoException(Exception e)
     {
         // log exceção, como construtor IOException que leva uma mensagem e causa só está disponível em Java 6
-        String msg = "Error parsing JSON response (" + responseBody + ")";
+        String msg = "Error parsing JSON response";
         LOGGER.log(Level.WARNING, msg, e);
         return new IOException(msg + ":" + e);
     }
@@ -506,35 +1513,7 @@ public class Sender
         }
     }
 
-    /**
-     * Define um campo JSON, mas apenas se o valor não for {@literal null}.
-     */
-    private void setJsonField(Map<Object, Object> json, String field, Object value)
-    {
-        if(value != null)
-        {
-            json.put(field, value);
-        }
-    }
-
-    private Number getNumber(Map<?, ?> json, String field)
-    {
-        Object value = json.get(field);
-
-        if(value == null)
-        {
-            throw new CustomParserException("Campo faltando: " + field);
-        }
-
-        if(!(value instanceof Number))
-        {
-            throw new CustomParserException("Campo " + field + " não contém um número: " + value);
-        }
-
-        return (Number)value;
-    }
-
-    class CustomParserException extends RuntimeException
+    static class CustomParserException extends RuntimeException
     {
         CustomParserException(String message)
         {
@@ -574,6 +1553,35 @@ public class Sender
      * @throws IOException propagadas a partir de métodos subjacentes.
      */
     protected HttpURLConnection post(String url, String contentType, String body) throws IOException
+    {
+        if(body == null)
+        {
+            throw new IllegalArgumentException("Estes argumentos não podem ser nulos");
+        }
+
+        LOGGER.log(Level.FINEST, "POST body: {0}", body);
+        byte[] bytes = body.getBytes(UTF8);
+        return post(url, contentType, bytes, bytes.length);
+    }
+
+    /**
+     * Faz uma solicitação POST HTTP a um endpoint, enviando os primeiros {@code length} bytes de {@code body} sem cópias
+     * intermediárias.
+     * <p>
+     * <p>
+     * <strong>Nota: </strong> o retorno conectado não pode deve ser desligado, caso contrário ele iria matar conexões persistentes feitas
+     * usando Keep-Alive.
+     *
+     * @param url         endpoint POST post e request.
+     * @param contentType tipo do request.
+     * @param body        buffer com o corpo do request, já codificado.
+     * @param length      número de bytes válidos em {@code body}.
+     *
+     * @return the underlying connection.
+     *
+     * @throws IOException propagadas a partir de métodos subjacentes.
+     */
+    protected HttpURLConnection post(String url, String contentType, byte[] body, int length) throws IOException
     {
         if(url == null || contentType == null || body == null)
         {
@@ -586,13 +1594,10 @@ public class Sender
         }
 
         LOGGER.log(Level.FINE, "Enviando POST to {0}", url);
-        LOGGER.log(Level.FINEST, "POST body: {0}", body);
-
-        byte[] bytes = body.getBytes(UTF8);
         HttpURLConnection conn = getConnection(url);
         conn.setDoOutput(true);
         conn.setUseCaches(false);
-        conn.setFixedLengthStreamingMode(bytes.length);
+        conn.setFixedLengthStreamingMode(length);
         conn.setRequestMethod("POST");
         conn.setRequestProperty("Content-Type", contentType);
         conn.setRequestProperty("Authorization", "key=" + key);
@@ -600,7 +1605,7 @@ public class Sender
 
         try
         {
-            out.write(bytes);
+            out.write(body, 0, length);
         }
         finally
         {
@@ -609,6 +1614,22 @@ public class Sender
         return conn;
     }
 
+    /**
+     * Transporte default, baseado em {@link HttpURLConnection}. Delega para {@link #post(String, String, byte[], int)}, de modo que
+     * subclasses que sobrescrevem {@link #post(String, String, byte[], int)} ou {@link #getConnection(String)} continuam funcionando.
+     */
+    private final class ConnectionTransport implements Transport
+    {
+        @Override
+        public Response post(String url, String contentType, String authorization, byte[] body, int length) throws IOException
+        {
+            // o header Authorization é definido por Sender.post a partir do key
+            HttpURLConnection conn = Sender.this.post(url, contentType, body, length);
+            int status = conn.getResponseCode();
+            return new Response(status, status == 200 ? conn.getInputStream() : conn.getErrorStream(), conn.getHeaderFields());
+        }
+    }
+
     /**
      * Cria um map com apenas um par chave-valor.
      *
@@ -684,7 +1705,7 @@ public class Sender
             return "";
         }
 
-        BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream, UTF8));
         StringBuilder content = new StringBuilder();
         String newLine;
 
@@ -733,6 +1754,11 @@ public class Sender
         return argument;
     }
 
+    /**
+     * @deprecated não é mais chamado; as novas tentativas são agendadas no scheduler do sender (veja
+     * {@link #setScheduler(ScheduledExecutorService)}) em vez de dormir.
+     */
+    @Deprecated
     void sleep(long millis)
     {
         try
@@ -753,54 +1779,14 @@ public class Sender
      * @return retorna true se a resgitrationId é valido.
      *
      * @throws IOException se houve um erro de parsing JSON.
+     *
+     * @see RegistrationIdValidator
      */
     public boolean checkingRegistrationId(String registrationId) throws IOException
     {
-        int attempt = 0;
-        int backoff = BACKOFF_INITIAL_DELAY;
-
-        boolean tryAgain;
-        boolean sucess = false;
-
-        Result result;
         Message message = new Message.Builder().dryRun(true).build();
+        Result result = send(message, registrationId, 5);
 
-        do
-        {
-            attempt++;
-            if(LOGGER.isLoggable(Level.FINE))
-            {
-                LOGGER.log(Level.FINE, "Tentativa #{0} para enviar mensagem para regIds {1}", new Object[]
-                {
-                    attempt, registrationId
-                });
-            }
-
-            result = sendNoRetry(message, registrationId);
-            tryAgain = (result == null && attempt <= 5);
-
-            if(tryAgain)
-            {
-                int sleepTime = ((backoff / 2) + random.nextInt(backoff));
-                sleep(sleepTime);
-
-                if(2 * backoff < MAX_BACKOFF_DELAY)
-                {
-                    backoff *= 2;
-                }
-            }
-        }
-        while(tryAgain);
-
-        if(result == null)
-        {
-            throw new IOException("Não foi possível enviar mensagem depois " + attempt + " tentativas");
-        }
-        else
-        {
-            sucess = !((result.getErrorCodeName() != null) && result.getErrorCodeName().equals(Constants.INVALID_REGISTRATION));
-        }
-
-        return sucess;
+        return result.getErrorCode() != ErrorCode.INVALID_REGISTRATION;
     }
 }
@@ -0,0 +1,79 @@
+package com.gcm.server.http;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads compartilhadas pelos {@link Sender} que não receberam um executor próprio.
+ * <p>
+ * Todas as threads são daemon, de modo que não impedem o término da JVM.
+ */
+final class SenderThreads
+{
+    /**
+     * Número máximo de threads de {@link #WORKERS}: cada tentativa ocupa uma thread apenas durante o request.
+     */
+    static final int MAX_WORKERS = Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Executor usado para enviar lotes multicast em paralelo e as tentativas dos envios assíncronos. O número de threads é
+     * limitado a {@link #MAX_WORKERS}, qualquer que seja o número de envios síncronos simultâneos; as tentativas excedentes
+     * aguardam na fila do executor.
+     */
+    static final ExecutorService WORKERS = newWorkers(MAX_WORKERS, "gcm-sender-worker-");
+
+    /**
+     * Número máximo de threads de {@link #PRIORITY_WORKERS}.
+     */
+    static final int MAX_PRIORITY_WORKERS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Executor exclusivo das tentativas das mensagens de alta prioridade, que assim nunca aguardam na fila de {@link #WORKERS}
+     * atrás das tentativas de uma campanha.
+     */
+    static final ExecutorService PRIORITY_WORKERS = newWorkers(MAX_PRIORITY_WORKERS, "gcm-sender-priority-");
+
+    /**
+     * Scheduler das novas tentativas; apenas agenda, o envio é feito em {@link #WORKERS}.
+     */
+    static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(newThreadFactory("gcm-sender-scheduler-"));
+
+    private SenderThreads()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    private static ExecutorService newWorkers(int threads, String prefix)
+    {
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                newThreadFactory(prefix));
+        // threads ociosas são encerradas depois de 60 segundos
+        workers.allowCoreThreadTimeOut(true);
+        return workers;
+    }
+
+    /**
+     * Cria um {@link ThreadFactory} de threads daemon numeradas.
+     *
+     * @param prefix prefixo do nome das threads.
+     *
+     * @return thread factory.
+     */
+    static ThreadFactory newThreadFactory(String prefix)
+    {
+        AtomicInteger count = new AtomicInteger();
+
+        return (runnable) ->
+        {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
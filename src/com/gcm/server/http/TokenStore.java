@@ -0,0 +1,425 @@
+package com.gcm.server.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Dicionário de registration ids fora do heap, que guarda os canonical registration ids informados pelo GCM.
+ * <p>
+ * Quando o GCM responde com um canonical registration id, o id enviado continua a funcionar, mas o GCM passa a informar o mesmo
+ * canonical id em todos os envios seguintes até que o id antigo seja substituído. Com um {@link TokenStore}, o {@link Sender}
+ * aprende cada mapeamento (id antigo &rarr; canonical id) e, antes de cada multicast, troca os ids antigos pelos canônicos. O
+ * resultado de um id trocado informa o canonical id em {@link Result#getCanonicalRegistrationId()}, como se o GCM o tivesse
+ * retornado, de modo que o chamador também pode atualizar o seu armazenamento.
+ * <p>
+ * Os ids são guardados como bytes Latin-1 em arenas de {@link ByteBuffer#allocateDirect(int) memória direta}, indexados por uma
+ * tabela hash de endereçamento aberto também fora do heap: cada id ocupa o seu tamanho mais 18 bytes na arena e 8 bytes no
+ * índice, sem objetos Java por entrada. Ids com caracteres fora do Latin-1 não são guardados. Examplo:
+ * <pre><code>
+ * TokenStore store = new TokenStore();
+ * sender.setTokenStore(store);
+ * </code></pre>
+ * <p>
+ * As instâncias dessa classe são thread-safe; as consultas são simultâneas, e as alterações exclusivas.
+ *
+ * @see Sender#setTokenStore(TokenStore)
+ */
+public final class TokenStore
+{
+    /**
+     * Número máximo de ids guardados, antigos e canônicos.
+     */
+    public static final int MAX_TOKENS = (1 << 27) / 4 * 3;
+
+    // tamanho de cada arena de ids
+    private static final int ARENA_SIZE = 1 << 26;
+    private static final int INITIAL_INDEX_CAPACITY = 1 << 16;
+    // maior índice em um único ByteBuffer: com 8 bytes por posição, 2^30 bytes, o maior tamanho potência de 2 de um int
+    private static final int MAX_INDEX_CAPACITY = MAX_TOKENS / 3 * 4;
+    // canonical ids encadeados seguidos por uma consulta, para que um ciclo não prenda a consulta
+    private static final int MAX_CANONICAL_HOPS = 8;
+
+    // entrada na arena: hash (8 bytes), referência do canonical id (8), tamanho (2) e os bytes Latin-1
+    private static final int HASH = 0;
+    private static final int CANONICAL = 8;
+    private static final int LENGTH = 16;
+    private static final int BYTES = 18;
+
+    // posição do índice: 16 bits mais altos do hash e 48 bits da referência da entrada (arena + 1, posição na arena)
+    private static final long REFERENCE_MASK = (1L << 48) - 1;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<ByteBuffer> arenas = new ArrayList<>();
+    private ByteBuffer arena;
+    private ByteBuffer index;
+    private int mask;
+    private int size;
+
+    /**
+     * Cria um dicionário vazio.
+     */
+    public TokenStore()
+    {
+        this(INITIAL_INDEX_CAPACITY / 2);
+    }
+
+    /**
+     * Cria um dicionário vazio com espaço no índice para o número de ids informado.
+     *
+     * @param expectedTokens número de ids esperado.
+     *
+     * @throws IllegalArgumentException se expectedTokens é negativo ou maior que {@value #MAX_TOKENS}.
+     */
+    public TokenStore(int expectedTokens)
+    {
+        if(expectedTokens < 0 || expectedTokens > MAX_TOKENS)
+        {
+            throw new IllegalArgumentException("número de ids inválido: " + expectedTokens);
+        }
+
+        int capacity = INITIAL_INDEX_CAPACITY;
+
+        while(capacity * 3 / 4 < expectedTokens)
+        {
+            capacity <<= 1;
+        }
+
+        index = ByteBuffer.allocateDirect(capacity * 8);
+        mask = capacity - 1;
+    }
+
+    /**
+     * Obtém o canonical registration id de um registration id, seguindo os mapeamentos encadeados.
+     *
+     * @param registrationId registration id.
+     *
+     * @return canonical registration id, ou o próprio {@code registrationId} se não há mapeamento.
+     */
+    public String getCanonical(String registrationId)
+    {
+        long hash = hash(Sender.nonNull(registrationId));
+
+        if(hash == 0)
+        {
+            return registrationId;
+        }
+
+        lock.readLock().lock();
+
+        try
+        {
+            long reference = find(registrationId, hash);
+
+            if(reference == 0)
+            {
+                return registrationId;
+            }
+
+            long canonical = entry(reference).getLong(offset(reference) + CANONICAL);
+
+            if(canonical == 0)
+            {
+                return registrationId;
+            }
+
+            for(int i = 1; i < MAX_CANONICAL_HOPS; i++)
+            {
+                long next = entry(canonical).getLong(offset(canonical) + CANONICAL);
+
+                if(next == 0)
+                {
+                    break;
+                }
+                canonical = next;
+            }
+
+            return read(canonical);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Registra o canonical registration id de um registration id, substituindo o anterior.
+     *
+     * @param registrationId registration id antigo.
+     * @param canonicalId    canonical registration id informado pelo GCM.
+     *
+     * @throws IllegalStateException se o dicionário já tem {@value #MAX_TOKENS} ids.
+     */
+    public void putCanonical(String registrationId, String canonicalId)
+    {
+        long hash = hash(Sender.nonNull(registrationId));
+        long canonicalHash = hash(Sender.nonNull(canonicalId));
+
+        if(hash == 0 || canonicalHash == 0 || registrationId.equals(canonicalId))
+        {
+            return;
+        }
+
+        lock.writeLock().lock();
+
+        try
+        {
+            long reference = findOrInsert(registrationId, hash);
+            long canonical = findOrInsert(canonicalId, canonicalHash);
+            entry(reference).putLong(offset(reference) + CANONICAL, canonical);
+
+            // o mapeamento mais novo prevalece sobre o inverso
+            if(entry(canonical).getLong(offset(canonical) + CANONICAL) == reference)
+            {
+                entry(canonical).putLong(offset(canonical) + CANONICAL, 0);
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Obtém o número de registration ids guardados, antigos e canônicos.
+     *
+     * @return size
+     */
+    public int size()
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            return size;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Obtém a memória fora do heap reservada pelo dicionário, em bytes.
+     *
+     * @return memoryUsage
+     */
+    public long getMemoryUsage()
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            long total = index.capacity();
+
+            for(ByteBuffer buffer : arenas)
+            {
+                total += buffer.capacity();
+            }
+
+            return total;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    private long find(String token, long hash)
+    {
+        long tag = hash >>> 48;
+        int slot = (int)hash & mask;
+
+        for(;;)
+        {
+            long value = index.getLong(slot * 8);
+
+            if(value == 0)
+            {
+                return 0;
+            }
+
+            long reference = value & REFERENCE_MASK;
+
+            if(value >>> 48 == tag && matches(reference, token, hash))
+            {
+                return reference;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private long findOrInsert(String token, long hash)
+    {
+        long reference = find(token, hash);
+
+        if(reference != 0)
+        {
+            return reference;
+        }
+
+        // antes de copiar o id, para que um dicionário cheio não fique com uma entrada fora do índice
+        if(size + 1 > (mask + 1) * 3 / 4)
+        {
+            rehash();
+        }
+
+        reference = append(token, hash);
+        insert(reference, hash);
+        size++;
+        return reference;
+    }
+
+    private boolean matches(long reference, String token, long hash)
+    {
+        ByteBuffer buffer = entry(reference);
+        int offset = offset(reference);
+
+        if(buffer.getLong(offset + HASH) != hash || (buffer.getShort(offset + LENGTH) & 0xFFFF) != token.length())
+        {
+            return false;
+        }
+
+        for(int i = 0; i < token.length(); i++)
+        {
+            if(buffer.get(offset + BYTES + i) != (byte)token.charAt(i))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Copia o id para a arena atual, criando uma nova se necessário.
+     *
+     * @return referência da entrada.
+     */
+    private long append(String token, long hash)
+    {
+        int length = BYTES + token.length();
+
+        if(arena == null || arena.remaining() < length)
+        {
+            if(arenas.size() == 0xFFFE)
+            {
+                throw new IllegalStateException("TokenStore cheio");
+            }
+            arena = ByteBuffer.allocateDirect(ARENA_SIZE);
+            arenas.add(arena);
+        }
+
+        int offset = arena.position();
+        arena.putLong(hash);
+        arena.putLong(0);
+        arena.putShort((short)token.length());
+
+        for(int i = 0; i < token.length(); i++)
+        {
+            arena.put((byte)token.charAt(i));
+        }
+
+        return ((long)arenas.size() << 32) | offset;
+    }
+
+    private void insert(long reference, long hash)
+    {
+        int slot = (int)hash & mask;
+
+        while(index.getLong(slot * 8) != 0)
+        {
+            slot = (slot + 1) & mask;
+        }
+
+        index.putLong(slot * 8, (hash >>> 48) << 48 | reference);
+    }
+
+    /**
+     * Dobra o índice, reposicionando as entradas pelo hash guardado na arena.
+     */
+    private void rehash()
+    {
+        if(mask + 1 == MAX_INDEX_CAPACITY)
+        {
+            throw new IllegalStateException("TokenStore cheio");
+        }
+
+        ByteBuffer old = index;
+        int capacity = (mask + 1) << 1;
+        index = ByteBuffer.allocateDirect(capacity * 8);
+        mask = capacity - 1;
+
+        for(int slot = 0; slot < old.capacity() / 8; slot++)
+        {
+            long value = old.getLong(slot * 8);
+
+            if(value != 0)
+            {
+                long reference = value & REFERENCE_MASK;
+                insert(reference, entry(reference).getLong(offset(reference) + HASH));
+            }
+        }
+    }
+
+    private ByteBuffer entry(long reference)
+    {
+        return arenas.get((int)(reference >>> 32) - 1);
+    }
+
+    private static int offset(long reference)
+    {
+        return (int)reference;
+    }
+
+    private String read(long reference)
+    {
+        ByteBuffer buffer = entry(reference);
+        int offset = offset(reference);
+        byte[] bytes = new byte[buffer.getShort(offset + LENGTH) & 0xFFFF];
+
+        for(int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = buffer.get(offset + BYTES + i);
+        }
+
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Hash de 64 bits (FNV-1a seguido de uma mistura final), nunca 0; 0 indica um id que não pode ser guardado (caracteres fora
+     * do Latin-1 ou mais de 65535 caracteres).
+     */
+    private static long hash(String value)
+    {
+        if(value.length() > 0xFFFF)
+        {
+            return 0;
+        }
+
+        long hash = 0xcbf29ce484222325L;
+
+        for(int i = 0; i < value.length(); i++)
+        {
+            char ch = value.charAt(i);
+
+            if(ch > 0xFF)
+            {
+                return 0;
+            }
+
+            hash ^= ch;
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+
+        return hash == 0 ? 1 : hash;
+    }
+}
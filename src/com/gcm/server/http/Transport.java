@@ -0,0 +1,116 @@
+package com.gcm.server.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transporte HTTP usado pelo {@link Sender} para entregar os requests ao GCM.
+ * <p>
+ * Permite trocar a implementação de rede (pool de conexões, HTTP/2, NIO, ou um transporte em memória para testes e benchmarks)
+ * sem estender {@link Sender}. Implementações devem ser thread-safe, pois um mesmo sender envia vários requests simultâneos.
+ *
+ * @see Sender#setTransport(Transport)
+ * @see HttpClientTransport
+ */
+public interface Transport
+{
+    /**
+     * Faz um POST HTTP.
+     * <p>
+     * O buffer {@code body} pertence ao chamador e pode ser reutilizado assim que este método retornar.
+     *
+     * @param url           endpoint do POST.
+     * @param contentType   tipo do request.
+     * @param authorization valor do header Authorization.
+     * @param body          buffer com o corpo do request, já codificado em UTF-8.
+     * @param length        número de bytes válidos em {@code body}.
+     *
+     * @return response HTTP, que será fechado pelo chamador.
+     *
+     * @throws IOException se o request não pôde ser feito.
+     */
+    Response post(String url, String contentType, String authorization, byte[] body, int length) throws IOException;
+
+    /**
+     * Response de um POST: o status HTTP, os headers e o body.
+     */
+    final class Response implements Closeable
+    {
+        private final int status;
+        private final InputStream body;
+        private final Map<String, List<String>> headers;
+
+        /**
+         * @param status código de status HTTP.
+         * @param body   body do response (ou do erro), pode ser {@literal null}.
+         */
+        public Response(int status, InputStream body)
+        {
+            this(status, body, Collections.emptyMap());
+        }
+
+        /**
+         * @param status  código de status HTTP.
+         * @param body    body do response (ou do erro), pode ser {@literal null}.
+         * @param headers headers do response.
+         */
+        public Response(int status, InputStream body, Map<String, List<String>> headers)
+        {
+            this.status = status;
+            this.body = body;
+            this.headers = Sender.nonNull(headers);
+        }
+
+        /**
+         * Obtém o código de status HTTP.
+         *
+         * @return status
+         */
+        public int getStatus()
+        {
+            return status;
+        }
+
+        /**
+         * Obtém o body do response, que pode ser {@literal null}.
+         *
+         * @return body
+         */
+        public InputStream getBody()
+        {
+            return body;
+        }
+
+        /**
+         * Obtém o primeiro valor de um header, ignorando maiúsculas e minúsculas no nome.
+         *
+         * @param name nome do header.
+         *
+         * @return valor do header, ou {@literal null} se ausente.
+         */
+        public String getHeader(String name)
+        {
+            for(Map.Entry<String, List<String>> entry : headers.entrySet())
+            {
+                if(name.equalsIgnoreCase(entry.getKey()) && !entry.getValue().isEmpty())
+                {
+                    return entry.getValue().get(0);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if(body != null)
+            {
+                body.close();
+            }
+        }
+    }
+}